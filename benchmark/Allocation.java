@@ -0,0 +1,29 @@
+package com.craftinginterpreters.jlox;
+
+import java.lang.management.ManagementFactory;
+
+// Runs a script the way jlox does and reports how many bytes the
+// thread running it allocated, and how much heap is still in use once
+// it's done and the collector has run. Globals stay reachable after the
+// script finishes, so the second number is what the script kept alive.
+//
+//   javac -d out jlox/*.java benchmark/Allocation.java
+//   java -cp out com.craftinginterpreters.jlox.Allocation \
+//       [jlox options...] benchmark/fib.lox
+public class Allocation {
+    public static void main(String[] args) throws Exception {
+	com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean)
+	    ManagementFactory.getThreadMXBean();
+	long before = threads.getCurrentThreadAllocatedBytes();
+	Lox.main(args);
+	long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+	Runtime runtime = Runtime.getRuntime();
+	for (int i = 0; i < 3; i ++) System.gc();
+	long retained = runtime.totalMemory() - runtime.freeMemory();
+
+	System.err.println("allocated: " + allocated / (1 << 20) + " MB");
+	System.err.println("retained:  " + retained / (1 << 20) + " MB");
+    }
+}
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+// Measures how fast the Scanner gets through a mapped file, in MB/s,
+// the way jlox scans a file it runs: a batch at a time into one
+// TokenBuffer that gets reused. The parser isn't involved.
+//
+// The source is a .lox file, or one of these generated corpora, which
+// are written to a temporary file first:
+//   code           the scripts in benchmark/ repeated
+//   line-comments  a statement and then nothing but // comments
+//   doc-comment    one /** ... */ comment with a * on every line
+//
+//   javac -d out jlox/*.java benchmark/ScanThroughput.java
+//   java -cp out com.craftinginterpreters.jlox.ScanThroughput \
+//       code|line-comments|doc-comment|file.lox [megabytes] [runs]
+//
+// It prints the speed of every run and the median of the second half,
+// after the JIT has had the first half to warm up.
+public class ScanThroughput {
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1 || args.length > 3) {
+	    System.out.println("Usage: ScanThroughput " +
+			       "code|line-comments|doc-comment|file.lox" +
+			       " [megabytes] [runs]");
+	    System.exit(64);
+	}
+	int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+	int runs = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+
+	Path path = corpus(args[0], megabytes * 1_000_000);
+	ByteBuffer source;
+	try (FileChannel channel = FileChannel.open(path)) {
+	    source = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				 channel.size());
+	}
+
+	double[] speeds = new double[runs];
+	for (int run = 0; run < runs; run ++) {
+	    long start = System.nanoTime();
+	    int count = scan(source);
+	    double seconds = (System.nanoTime() - start) / 1e9;
+	    speeds[run] = source.limit() / 1e6 / seconds;
+	    System.out.printf("%.0f MB/s, %d tokens%n", speeds[run], count);
+	}
+
+	double[] warm = Arrays.copyOfRange(speeds, runs / 2, runs);
+	Arrays.sort(warm);
+	System.out.printf("median %.0f MB/s%n", warm[warm.length / 2]);
+    }
+
+    private static int scan(ByteBuffer source) {
+	Scanner scanner = new Scanner(source);
+	TokenBuffer tokens = new TokenBuffer(source);
+	int count = 0;
+	do {
+	    tokens.count = 0;
+	    scanner.scanInto(tokens);
+	    count += tokens.count;
+	} while (tokens.type(tokens.count - 1) != TokenType.EOF);
+	return count;
+    }
+
+    private static Path corpus(String name, int size) throws IOException {
+	String text;
+	switch (name) {
+	case "code":
+	    text = repeat(benchmarks(), size);
+	    break;
+	case "line-comments":
+	    text = "var x = 0;\n" +
+		repeat("// padding padding padding padding padding padding" +
+		       " padding padding padding padding padding padding\n",
+		       size);
+	    break;
+	case "doc-comment":
+	    text = "/**\n" +
+		repeat(" * a doc comment line explaining things at length," +
+		       " as they do here\n", size) +
+		" */\nprint 1;\n";
+	    break;
+	default:
+	    return Paths.get(name);
+	}
+
+	Path path = Files.createTempFile("scan-" + name, ".lox");
+	path.toFile().deleteOnExit();
+	Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+	return path;
+    }
+
+    // Every .lox script in benchmark/, one after another.
+    private static String benchmarks() throws IOException {
+	StringBuilder builder = new StringBuilder();
+	try (Stream<Path> files = Files.list(Paths.get("benchmark"))) {
+	    for (Path path : (Iterable<Path>)files.sorted()::iterator) {
+		if (!path.toString().endsWith(".lox")) continue;
+		builder.append(new String(Files.readAllBytes(path),
+					  StandardCharsets.UTF_8));
+	    }
+	}
+	return builder.toString();
+    }
+
+    private static String repeat(String text, int size) {
+	return text.repeat(size / text.length() + 1);
+    }
+}
@@ -1,25 +1,172 @@
 package com.craftinginterpreters.jlox;
 
-class AstPrinter implements Expr.Visitor<String> {
+import java.util.List;
+
+// Prints a tree as nested, Lisp-like lists, for --dump-ast.
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return block("block", stmt.statements);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) {
+            builder.append(" < ").append(print(stmt.superclass));
+        }
+        for (Stmt.Function method : stmt.methods) {
+            builder.append(" ").append(print(method));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitForStmt(Stmt.For stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(for ");
+        builder.append(stmt.initializer == null ?
+                       "nil" : print(stmt.initializer)).append(" ");
+        builder.append(stmt.condition == null ?
+                       "nil" : print(stmt.condition)).append(" ");
+        builder.append(stmt.increment == null ?
+                       "nil" : print(stmt.increment)).append(" ");
+        builder.append(print(stmt.body)).append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(fun ").append(stmt.name.lexeme).append("(");
+        for (Token param : stmt.params) {
+            if (param != stmt.params.get(0)) builder.append(" ");
+            builder.append(param.lexeme);
+        }
+        builder.append(")");
+        for (Stmt statement : stmt.body) {
+            builder.append(" ").append(print(statement));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        if (stmt.elseBranch == null) {
+            return "(if " + print(stmt.condition) + " " +
+                print(stmt.thenBranch) + ")";
+        }
+        return "(if-else " + print(stmt.condition) + " " +
+            print(stmt.thenBranch) + " " + print(stmt.elseBranch) + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "(while " + print(stmt.condition) + " " +
+            print(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + expr.name.lexeme, expr.value);
+    }
+
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme,
                             expr.left, expr.right);
     }
 
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(call ").append(print(expr.callee));
+        for (Expr argument : expr.arguments) {
+            builder.append(" ").append(print(argument));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize(". " + expr.name.lexeme, expr.object);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
     }
 
+    @Override
+    public String visitInlinedExpr(Expr.Inlined expr) {
+        return parenthesize("inline " + expr.function.name.lexeme,
+                            expr.call, expr.body);
+    }
+
+    @Override
+    public String visitInvariantExpr(Expr.Invariant expr) {
+        return parenthesize("invariant", expr.expression);
+    }
+
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
         if (expr.value == null) return "nil";
-        return expr.value.toString();
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
+        return Interpreter.stringify(expr.value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("=. " + expr.name.lexeme, expr.object, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "(super " + expr.method.lexeme + ")";
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
     }
 
     @Override
@@ -27,6 +174,11 @@ class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.right);
     }
 
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
 
@@ -39,6 +191,18 @@ class AstPrinter implements Expr.Visitor<String> {
         return builder.toString();
     }
 
+    private String block(String name, List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("(").append(name);
+        for (Stmt statement : statements) {
+            builder.append(" ");
+            builder.append(statement.accept(this));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
     public static void main(String[] args) {
         Expr expression = new Expr.Binary(
             new Expr.Unary(
@@ -0,0 +1,218 @@
+package com.craftinginterpreters.jlox;
+
+// Self-specializing implementations of Expr.Binary.
+// Every binary expression starts out UNINITIALIZED. The first time it runs
+// it looks at its operand types and rewrites itself (expr.node) into a node
+// that only handles those types. If a specialized node ever sees other
+// types it deoptimizes to GENERIC for good, which does what the
+// Interpreter always did.
+abstract class BinaryNode {
+    // Set by --specialize.
+    static boolean enabled = false;
+
+    // Thrown by the typed execute methods when the result has another type.
+    // It carries the boxed value so the caller can carry on generically.
+    static class UnexpectedResult extends RuntimeException {
+	final Object value;
+
+	UnexpectedResult(Object value) {
+	    super(null, null, false, false);
+	    this.value = value;
+	}
+    }
+
+    abstract Object execute(Interpreter interpreter, Expr.Binary expr);
+
+    // Typed entry points, so number nodes can hand their result to a
+    // parent number node without boxing it in between.
+    double executeDouble(Interpreter interpreter, Expr.Binary expr) {
+	Object value = execute(interpreter, expr);
+	if (value instanceof Double) return (double)value;
+	throw new UnexpectedResult(value);
+    }
+
+    boolean executeBoolean(Interpreter interpreter, Expr.Binary expr) {
+	Object value = execute(interpreter, expr);
+	if (value instanceof Boolean) return (boolean)value;
+	throw new UnexpectedResult(value);
+    }
+
+    static final BinaryNode UNINITIALIZED = new BinaryNode() {
+	    @Override
+	    Object execute(Interpreter interpreter, Expr.Binary expr) {
+		Object left = interpreter.evaluate(expr.left);
+		Object right = interpreter.evaluate(expr.right);
+		expr.node = specialize(expr.operator.type, left, right);
+		return Interpreter.binary(expr.operator, left, right);
+	    }
+	};
+
+    static final BinaryNode GENERIC = new BinaryNode() {
+	    @Override
+	    Object execute(Interpreter interpreter, Expr.Binary expr) {
+		Object left = interpreter.evaluate(expr.left);
+		Object right = interpreter.evaluate(expr.right);
+		return Interpreter.binary(expr.operator, left, right);
+	    }
+	};
+
+    private static BinaryNode specialize(TokenType operator,
+					 Object left, Object right) {
+	if (left instanceof String && right instanceof String) {
+	    return operator == TokenType.PLUS ? STRING_ADD : GENERIC;
+	}
+	if (!(left instanceof Double && right instanceof Double)) return GENERIC;
+
+	switch (operator) {
+	case PLUS:          return ADD;
+	case MINUS:         return SUBTRACT;
+	case STAR:          return MULTIPLY;
+	case SLASH:         return DIVIDE;
+	case GREATER:       return GREATER;
+	case GREATER_EQUAL: return GREATER_EQUAL;
+	case LESS:          return LESS;
+	case LESS_EQUAL:    return LESS_EQUAL;
+	default:            return GENERIC;
+	}
+    }
+
+    // Small whole numbers, mostly loop counters, share preallocated boxes.
+    private static final Double[] SMALL_NUMBERS = new Double[1024];
+
+    static {
+	for (int i = 0; i < SMALL_NUMBERS.length; i ++) {
+	    SMALL_NUMBERS[i] = (double)i;
+	}
+    }
+
+    static Object box(double value) {
+	int index = (int)value;
+	// The raw bits check keeps -0.0 out of the cache.
+	if (index == value && index >= 0 && index < SMALL_NUMBERS.length &&
+	    (index != 0 || Double.doubleToRawLongBits(value) == 0)) {
+	    return SMALL_NUMBERS[index];
+	}
+	return value;
+    }
+
+    // Both operands are expected to be numbers, and are evaluated unboxed.
+    // If one isn't, the node deoptimizes, finishes the operation
+    // generically and reports the result through UnexpectedResult.
+    private abstract static class NumberNode extends BinaryNode {
+	double left(Interpreter interpreter, Expr.Binary expr) {
+	    try {
+		return interpreter.evaluateDouble(expr.left);
+	    } catch (UnexpectedResult result) {
+		Object right = interpreter.evaluate(expr.right);
+		throw deoptimize(expr, result.value, right);
+	    }
+	}
+
+	double right(Interpreter interpreter, Expr.Binary expr, double left) {
+	    try {
+		return interpreter.evaluateDouble(expr.right);
+	    } catch (UnexpectedResult result) {
+		throw deoptimize(expr, left, result.value);
+	    }
+	}
+
+	private UnexpectedResult deoptimize(Expr.Binary expr,
+					    Object left, Object right) {
+	    expr.node = GENERIC;
+	    return new UnexpectedResult(
+		Interpreter.binary(expr.operator, left, right));
+	}
+    }
+
+    private abstract static class ArithmeticNode extends NumberNode {
+	abstract double apply(double left, double right);
+
+	@Override
+	Object execute(Interpreter interpreter, Expr.Binary expr) {
+	    try {
+		return box(executeDouble(interpreter, expr));
+	    } catch (UnexpectedResult result) {
+		return result.value;
+	    }
+	}
+
+	@Override
+	double executeDouble(Interpreter interpreter, Expr.Binary expr) {
+	    double left = left(interpreter, expr);
+	    return apply(left, right(interpreter, expr, left));
+	}
+    }
+
+    private abstract static class ComparisonNode extends NumberNode {
+	abstract boolean test(double left, double right);
+
+	@Override
+	Object execute(Interpreter interpreter, Expr.Binary expr) {
+	    try {
+		return executeBoolean(interpreter, expr);
+	    } catch (UnexpectedResult result) {
+		return result.value;
+	    }
+	}
+
+	@Override
+	boolean executeBoolean(Interpreter interpreter, Expr.Binary expr) {
+	    double left = left(interpreter, expr);
+	    return test(left, right(interpreter, expr, left));
+	}
+    }
+
+    private static final BinaryNode ADD = new ArithmeticNode() {
+	    @Override
+	    double apply(double left, double right) { return left + right; }
+	};
+
+    private static final BinaryNode SUBTRACT = new ArithmeticNode() {
+	    @Override
+	    double apply(double left, double right) { return left - right; }
+	};
+
+    private static final BinaryNode MULTIPLY = new ArithmeticNode() {
+	    @Override
+	    double apply(double left, double right) { return left * right; }
+	};
+
+    private static final BinaryNode DIVIDE = new ArithmeticNode() {
+	    @Override
+	    double apply(double left, double right) { return left / right; }
+	};
+
+    private static final BinaryNode GREATER = new ComparisonNode() {
+	    @Override
+	    boolean test(double left, double right) { return left > right; }
+	};
+
+    private static final BinaryNode GREATER_EQUAL = new ComparisonNode() {
+	    @Override
+	    boolean test(double left, double right) { return left >= right; }
+	};
+
+    private static final BinaryNode LESS = new ComparisonNode() {
+	    @Override
+	    boolean test(double left, double right) { return left < right; }
+	};
+
+    private static final BinaryNode LESS_EQUAL = new ComparisonNode() {
+	    @Override
+	    boolean test(double left, double right) { return left <= right; }
+	};
+
+    private static final BinaryNode STRING_ADD = new BinaryNode() {
+	    @Override
+	    Object execute(Interpreter interpreter, Expr.Binary expr) {
+		Object left = interpreter.evaluate(expr.left);
+		Object right = interpreter.evaluate(expr.right);
+		if (left instanceof String && right instanceof String) {
+		    return (String)left + (String)right;
+		}
+
+		expr.node = GENERIC;
+		return Interpreter.binary(expr.operator, left, right);
+	    }
+	};
+}
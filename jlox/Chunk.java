@@ -0,0 +1,40 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A sequence of bytecode along with its constant pool.
+// lines[] runs parallel to code[] so runtime errors can still report a line.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    // Numbers and strings are deduplicated, everything else is added as is.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+	if (count == code.length) {
+	    code = Arrays.copyOf(code, count * 2);
+	    lines = Arrays.copyOf(lines, count * 2);
+	}
+	code[count] = (byte)b;
+	lines[count] = line;
+	count ++;
+    }
+
+    int addConstant(Object value) {
+	boolean shared = value instanceof Double || value instanceof String;
+	if (shared) {
+	    Integer index = constantIndex.get(value);
+	    if (index != null) return index;
+	}
+	constants.add(value);
+	int index = constants.size() - 1;
+	if (shared) constantIndex.put(value, index);
+	return index;
+    }
+}
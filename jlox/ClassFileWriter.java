@@ -0,0 +1,304 @@
+package com.craftinginterpreters.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the Jit.
+// It emits version 49 class files, which the JVM still verifies
+// by type inference, so we don't have to compute stack map frames.
+class ClassFileWriter {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFNONNULL = 0xc7;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    // Thrown when the generated code outgrows what this writer handles.
+    static class TooLarge extends RuntimeException {
+	TooLarge() {
+	    super(null, null, false, false);
+	}
+    }
+
+    static class Label {
+	int position = -1;
+	final List<Integer> jumps = new ArrayList<>();
+    }
+
+    // The bytecode of one method, tracking the operand stack depth as it goes.
+    class Code {
+	private byte[] bytes = new byte[256];
+	private int length = 0;
+	private int stack = 0;
+	int maxStack = 0;
+	int maxLocals;
+	private final List<Label> labels = new ArrayList<>();
+
+	Code(int maxLocals) {
+	    this.maxLocals = maxLocals;
+	}
+
+	private void u1(int b) {
+	    if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+	    bytes[length++] = (byte)b;
+	}
+
+	private void u2(int value) {
+	    u1(value >> 8);
+	    u1(value);
+	}
+
+	private void adjust(int delta) {
+	    stack += delta;
+	    if (stack > maxStack) maxStack = stack;
+	}
+
+	void op(int opcode, int stackDelta) {
+	    u1(opcode);
+	    adjust(stackDelta);
+	}
+
+	void iconst(int value) {
+	    if (value <= 5) {
+		u1(ICONST_0 + value);
+	    } else if (value <= Byte.MAX_VALUE) {
+		u1(BIPUSH);
+		u1(value);
+	    } else if (value <= Short.MAX_VALUE) {
+		u1(SIPUSH);
+		u2(value);
+	    } else {
+		throw new TooLarge();
+	    }
+	    adjust(1);
+	}
+
+	void aload(int local) {
+	    localOp(ALOAD, local);
+	    adjust(1);
+	}
+
+	void astore(int local) {
+	    localOp(ASTORE, local);
+	    adjust(-1);
+	}
+
+	private void localOp(int opcode, int local) {
+	    if (local > 0xff) throw new TooLarge();
+	    if (local >= maxLocals) maxLocals = local + 1;
+	    u1(opcode);
+	    u1(local);
+	}
+
+	void field(int opcode, String owner, String name, String descriptor) {
+	    u1(opcode);
+	    u2(memberRef(9, owner, name, descriptor));
+	    // Every field we touch holds a reference.
+	    adjust(opcode == GETFIELD ? 0 : 1);
+	}
+
+	void invoke(int opcode, String owner, String name, String descriptor) {
+	    boolean isInterface = opcode == INVOKEINTERFACE;
+	    u1(opcode);
+	    u2(memberRef(isInterface ? 11 : 10, owner, name, descriptor));
+	    int arguments = argumentSlots(descriptor);
+	    if (isInterface) {
+		u1(arguments + 1);
+		u1(0);
+	    }
+	    int delta = -arguments;
+	    if (opcode != INVOKESTATIC) delta --;
+	    if (!descriptor.endsWith(")V")) delta ++;
+	    adjust(delta);
+	}
+
+	void anewarray(String internalName) {
+	    u1(ANEWARRAY);
+	    u2(classRef(internalName));
+	}
+
+	void checkcast(String internalName) {
+	    u1(CHECKCAST);
+	    u2(classRef(internalName));
+	}
+
+	void jump(int opcode, Label label) {
+	    label.jumps.add(length);
+	    u1(opcode);
+	    u2(0);
+	    adjust(opcode == GOTO ? 0 : -1);
+	    if (!labels.contains(label)) labels.add(label);
+	}
+
+	void mark(Label label) {
+	    label.position = length;
+	    if (!labels.contains(label)) labels.add(label);
+	}
+
+	private byte[] finish() {
+	    for (Label label : labels) {
+		for (int jump : label.jumps) {
+		    int offset = label.position - jump;
+		    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+			throw new TooLarge();
+		    }
+		    bytes[jump + 1] = (byte)(offset >> 8);
+		    bytes[jump + 2] = (byte)offset;
+		}
+	    }
+	    if (length > 0xffff) throw new TooLarge();
+	    return Arrays.copyOf(bytes, length);
+	}
+    }
+
+    private static class Method {
+	final int name;
+	final int descriptor;
+	final Code code;
+
+	Method(int name, int descriptor, Code code) {
+	    this.name = name;
+	    this.descriptor = descriptor;
+	    this.code = code;
+	}
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<Method> methods = new ArrayList<>();
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFileWriter(String name, String superName) {
+	this.thisClass = classRef(name);
+	this.superClass = classRef(superName);
+    }
+
+    Code method(String name, String descriptor, int maxLocals) {
+	Code code = new Code(maxLocals);
+	methods.add(new Method(utf8(name), utf8(descriptor), code));
+	return code;
+    }
+
+    byte[] toByteArray() {
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    int codeAttribute = utf8("Code");
+	    out.writeInt(0xcafebabe);
+	    out.writeShort(0);
+	    out.writeShort(49);
+	    if (poolCount > 0xffff) throw new TooLarge();
+	    out.writeShort(poolCount);
+	    poolBytes.writeTo(out);
+	    out.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(0); // interfaces
+	    out.writeShort(0); // fields
+	    out.writeShort(methods.size());
+	    for (Method method : methods) {
+		byte[] code = method.code.finish();
+		out.writeShort(0); // package-private
+		out.writeShort(method.name);
+		out.writeShort(method.descriptor);
+		out.writeShort(1);
+		out.writeShort(codeAttribute);
+		out.writeInt(12 + code.length);
+		out.writeShort(method.code.maxStack);
+		out.writeShort(method.code.maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	    }
+	    out.writeShort(0); // class attributes
+	    return bytes.toByteArray();
+	} catch (IOException error) {
+	    // Writing to memory doesn't fail.
+	    throw new IllegalStateException(error);
+	}
+    }
+
+    private int utf8(String value) {
+	return constant("utf8 " + value, 1, () -> pool.writeUTF(value));
+    }
+
+    private int classRef(String internalName) {
+	int name = utf8(internalName);
+	return constant("class " + internalName, 7, () -> pool.writeShort(name));
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+	int ownerIndex = classRef(owner);
+	int nameIndex = utf8(name);
+	int descriptorIndex = utf8(descriptor);
+	int nameAndType = constant("nat " + name + " " + descriptor, 12, () -> {
+		pool.writeShort(nameIndex);
+		pool.writeShort(descriptorIndex);
+	    });
+	return constant(tag + " " + owner + "." + name + descriptor, tag, () -> {
+		pool.writeShort(ownerIndex);
+		pool.writeShort(nameAndType);
+	    });
+    }
+
+    private interface Entry {
+	void write() throws IOException;
+    }
+
+    private int constant(String key, int tag, Entry entry) {
+	Integer index = poolIndex.get(key);
+	if (index != null) return index;
+	try {
+	    pool.writeByte(tag);
+	    entry.write();
+	} catch (IOException error) {
+	    throw new IllegalStateException(error);
+	}
+	poolIndex.put(key, poolCount);
+	return poolCount++;
+    }
+
+    // Only references and ints show up in the Jit's descriptors,
+    // so every argument takes one slot.
+    private static int argumentSlots(String descriptor) {
+	int slots = 0;
+	int i = 1;
+	while (descriptor.charAt(i) != ')') {
+	    char c = descriptor.charAt(i);
+	    while (c == '[') c = descriptor.charAt(++i);
+	    if (c == 'L') i = descriptor.indexOf(';', i);
+	    slots ++;
+	    i ++;
+	}
+	return slots;
+    }
+}
@@ -0,0 +1,448 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.List;
+
+import static com.craftinginterpreters.jlox.OpCode.*;
+
+// Compiles the resolved syntax tree into bytecode for the VM.
+// Each function body gets its own Compiler and its own Chunk.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final VM.Function function;
+    private final Chunk chunk;
+    // Line of the last token we saw, used for instructions that can't fail.
+    private int line = 1;
+
+    private Compiler(String name, int arity, boolean isInitializer) {
+	this.function = new VM.Function(name, arity, isInitializer);
+	this.chunk = function.chunk;
+    }
+
+    // The top-level script is compiled as a function with no parameters.
+    static VM.Function compile(List<Stmt> statements, int frameSize) {
+	Compiler compiler = new Compiler("script", 0, false);
+	compiler.function.frameSize = frameSize;
+	compiler.body(statements);
+	return compiler.function;
+    }
+
+    private VM.Function function(Stmt.Function declaration,
+				 boolean isInitializer) {
+	Compiler compiler = new Compiler(declaration.name.lexeme,
+					 declaration.params.size(),
+					 isInitializer);
+	compiler.line = declaration.name.line;
+	compiler.function.declaration = declaration;
+	compiler.function.frameSize = declaration.frameSize;
+	compiler.function.hasEnvironment = declaration.hasEnvironment;
+	compiler.function.capturedParams = declaration.capturedParams;
+	compiler.body(declaration.body);
+	return compiler.function;
+    }
+
+    private void body(List<Stmt> statements) {
+	for (Stmt statement : statements) {
+	    compile(statement);
+	}
+	// Falling off the end returns nil, or "this" for an initializer.
+	emit(NIL);
+	emit(RETURN);
+    }
+
+    private void compile(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+	expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	if (stmt.hasEnvironment) emit(PUSH_SCOPE);
+	for (Stmt statement : stmt.statements) {
+	    compile(statement);
+	}
+	if (stmt.hasEnvironment) emit(POP_SCOPE);
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	line = stmt.name.line;
+	boolean hasSuperclass = stmt.superclass != null;
+	if (hasSuperclass) {
+	    compile(stmt.superclass);
+	    line = stmt.superclass.name.line;
+	}
+	emitShort(CLASS, chunk.addConstant(stmt.name.lexeme));
+	emitByte(hasSuperclass ? 1 : 0);
+
+	// Same scope layout as the Interpreter: "super" gets its own environment.
+	if (hasSuperclass) emit(INHERIT);
+	for (Stmt.Function method : stmt.methods) {
+	    boolean isInitializer = method.name.lexeme.equals("init");
+	    emitShort(CLOSURE, chunk.addConstant(function(method, isInitializer)));
+	    emitShort(METHOD, chunk.addConstant(method.name.lexeme));
+	}
+	if (hasSuperclass) emit(POP_SCOPE);
+
+	declare(stmt.slot, stmt.name.lexeme);
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	compile(stmt.expression);
+	emit(POP);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	line = stmt.name.line;
+	emitShort(CLOSURE, chunk.addConstant(function(stmt, false)));
+	declare(stmt.slot, stmt.name.lexeme);
+	return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	compile(stmt.condition);
+	int thenJump = emitJump(JUMP_IF_FALSE);
+	emit(POP);
+	compile(stmt.thenBranch);
+	int elseJump = emitJump(JUMP);
+
+	patchJump(thenJump);
+	emit(POP);
+	if (stmt.elseBranch != null) compile(stmt.elseBranch);
+	patchJump(elseJump);
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	compile(stmt.expression);
+	emit(PRINT);
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	line = stmt.keyword.line;
+	if (stmt.value != null) {
+	    compile(stmt.value);
+	} else {
+	    emit(NIL);
+	}
+	emit(RETURN);
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	line = stmt.name.line;
+	if (stmt.initializer != null) {
+	    compile(stmt.initializer);
+	} else {
+	    emit(NIL);
+	}
+	declare(stmt.slot, stmt.name.lexeme);
+	return null;
+    }
+
+    // Stores the declared variable on top of the stack where the
+    // Resolver put it.
+    private void declare(int slot, String name) {
+	if (slot != -1) {
+	    emitShort(SET_FRAME, slot);
+	    emit(POP);
+	} else {
+	    emitShort(DEFINE, chunk.addConstant(name));
+	}
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+	if (stmt.hasEnvironment) emit(PUSH_SCOPE);
+	if (stmt.initializer != null) compile(stmt.initializer);
+	clearInvariants(stmt.invariants);
+
+	int loopStart = chunk.count;
+	int exitJump = -1;
+	if (stmt.condition != null) {
+	    compile(stmt.condition);
+	    exitJump = emitJump(JUMP_IF_FALSE);
+	    emit(POP);
+	}
+	compile(stmt.body);
+	if (stmt.increment != null) {
+	    compile(stmt.increment);
+	    emit(POP);
+	}
+	emitLoop(loopStart);
+
+	if (exitJump != -1) {
+	    patchJump(exitJump);
+	    emit(POP);
+	}
+	if (stmt.hasEnvironment) emit(POP_SCOPE);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	clearInvariants(stmt.invariants);
+	int loopStart = chunk.count;
+	compile(stmt.condition);
+	int exitJump = emitJump(JUMP_IF_FALSE);
+	emit(POP);
+	compile(stmt.body);
+	emitLoop(loopStart);
+
+	patchJump(exitJump);
+	emit(POP);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	compile(expr.value);
+	line = expr.name.line;
+	if (expr.depth == Resolver.FRAME) {
+	    emitShort(SET_FRAME, expr.slot);
+	} else if (expr.depth != -1) {
+	    emitShort(SET_LOCAL, expr.depth);
+	    emitShort(expr.slot);
+	} else {
+	    emitShort(SET_GLOBAL, expr.slot);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	compile(expr.left);
+	compile(expr.right);
+	line = expr.operator.line;
+	switch (expr.operator.type) {
+	case BANG_EQUAL:    emit(EQUAL); emit(NOT); break;
+	case EQUAL_EQUAL:   emit(EQUAL);            break;
+	case GREATER:       emit(GREATER);          break;
+	case GREATER_EQUAL: emit(GREATER_EQUAL);    break;
+	case LESS:          emit(LESS);             break;
+	case LESS_EQUAL:    emit(LESS_EQUAL);       break;
+	case PLUS:          emit(ADD);              break;
+	case MINUS:         emit(SUBTRACT);         break;
+	case STAR:          emit(MULTIPLY);         break;
+	case SLASH:         emit(DIVIDE);           break;
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	compile(expr.callee);
+	for (Expr argument : expr.arguments) {
+	    compile(argument);
+	}
+	line = expr.paren.line;
+	emit(CALL);
+	emitByte(expr.arguments.size());
+	return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	compile(expr.object);
+	line = expr.name.line;
+	emitShort(GET_PROPERTY, chunk.addConstant(expr.name));
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	compile(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined expr) {
+	Expr.Call call = expr.call;
+	compile(call.callee);
+	emitShort(CHECK_INLINED, chunk.addConstant(expr.function));
+	int callJump = chunk.count;
+	emitByte(0xff);
+	emitByte(0xff);
+
+	for (int i = 0; i < call.arguments.size(); i ++) {
+	    compile(call.arguments.get(i));
+	    emitShort(SET_FRAME, expr.slot + i);
+	    emit(POP);
+	}
+	compile(expr.body);
+	int endJump = emitJump(JUMP);
+
+	// The callee is still on the stack.
+	patchJump(callJump);
+	for (Expr argument : call.arguments) {
+	    compile(argument);
+	}
+	line = call.paren.line;
+	emit(CALL);
+	emitByte(call.arguments.size());
+	patchJump(endJump);
+	return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+	emitShort(GET_FRAME, expr.slot);
+	int cachedJump = emitJump(JUMP_IF_CACHED);
+	compile(expr.expression);
+	emitShort(SET_FRAME, expr.slot);
+	patchJump(cachedJump);
+	return null;
+    }
+
+    private void clearInvariants(int[] slots) {
+	for (int slot : slots) {
+	    emit(NIL);
+	    emitShort(SET_FRAME, slot);
+	    emit(POP);
+	}
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	if (expr.value == null) {
+	    emit(NIL);
+	} else if (expr.value.equals(true)) {
+	    emit(TRUE);
+	} else if (expr.value.equals(false)) {
+	    emit(FALSE);
+	} else {
+	    emitShort(CONSTANT, chunk.addConstant(expr.value));
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	compile(expr.left);
+	if (expr.operator.type == TokenType.OR) {
+	    int elseJump = emitJump(JUMP_IF_FALSE);
+	    int endJump = emitJump(JUMP);
+	    patchJump(elseJump);
+	    emit(POP);
+	    compile(expr.right);
+	    patchJump(endJump);
+	} else {
+	    int endJump = emitJump(JUMP_IF_FALSE);
+	    emit(POP);
+	    compile(expr.right);
+	    patchJump(endJump);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	compile(expr.object);
+	line = expr.name.line;
+	// The Interpreter rejects a non-instance before evaluating the value.
+	emitShort(CHECK_FIELDS, chunk.addConstant(expr.name));
+	compile(expr.value);
+	line = expr.name.line;
+	emitShort(SET_PROPERTY, chunk.addConstant(expr.name));
+	return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+	line = expr.method.line;
+	emitShort(GET_SUPER, expr.depth);
+	emitShort(chunk.addConstant(expr.method));
+	return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+	line = expr.keyword.line;
+	emitShort(GET_LOCAL, expr.depth);
+	emitShort(expr.slot);
+	return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	compile(expr.right);
+	line = expr.operator.line;
+	switch (expr.operator.type) {
+	case BANG:  emit(NOT);    break;
+	case MINUS: emit(NEGATE); break;
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	line = expr.name.line;
+	if (expr.depth == Resolver.FRAME) {
+	    emitShort(GET_FRAME, expr.slot);
+	} else if (expr.depth != -1) {
+	    emitShort(GET_LOCAL, expr.depth);
+	    emitShort(expr.slot);
+	} else {
+	    emitShort(GET_GLOBAL, expr.slot);
+	}
+	return null;
+    }
+
+    private void emit(byte op) {
+	chunk.write(op, line);
+    }
+
+    private void emitByte(int b) {
+	chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+	if (value > 0xffff) {
+	    Lox.error(line, "Too many constants or variables in one function.");
+	}
+	chunk.write((value >> 8) & 0xff, line);
+	chunk.write(value & 0xff, line);
+    }
+
+    private void emitShort(byte op, int operand) {
+	emit(op);
+	emitShort(operand);
+    }
+
+    // Emits a jump with a placeholder offset and returns where to patch it.
+    private int emitJump(byte op) {
+	emit(op);
+	emitByte(0xff);
+	emitByte(0xff);
+	return chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+	// -2 to adjust for the bytecode for the jump offset itself.
+	int jump = chunk.count - offset - 2;
+	if (jump > 0xffff) {
+	    Lox.error(line, "Too much code to jump over.");
+	}
+	chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+	chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+	emit(LOOP);
+	int offset = chunk.count - loopStart + 2;
+	if (offset > 0xffff) Lox.error(line, "Loop body too large.");
+	emitByte((offset >> 8) & 0xff);
+	emitByte(offset & 0xff);
+    }
+}
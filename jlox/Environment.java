@@ -1,20 +1,86 @@
 package com.craftinginterpreters.jlox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment looks variables up by name. Each
+    // global has a cell, numbered in the order the Resolver first sees
+    // the name. Uses are bound to the number, so running them indexes
+    // the table instead of hashing the name. The numbering lasts as
+    // long as the interpreter, so every REPL line agrees on it.
+    private final Map<String, Integer> globalSlots;
+    private Global[] globals;
+    // Local scopes store their variables in declaration order,
+    // the Resolver hands out the matching slot index for each use.
+    private Object[] slots;
+    private int count = 0;
+
+    // A global variable. It's undefined until its declaration runs, but
+    // the cell exists as soon as some code mentions the name.
+    static final class Global {
+	final String name;
+	Object value = null;
+	boolean defined = false;
+
+	Global(String name) {
+	    this.name = name;
+	}
+    }
 
     Environment() {
 	enclosing = null;
+	globalSlots = new HashMap<>();
+	globals = new Global[16];
     }
 
     Environment(Environment enclosing) {
+	this(enclosing, 4);
+    }
+
+    // For scopes whose size is known up front, like a method's "this".
+    Environment(Environment enclosing, int capacity) {
 	this.enclosing = enclosing;
+	this.globalSlots = null;
+	this.slots = new Object[capacity];
+    }
+
+    // The global's number, giving it a cell if it hasn't got one.
+    int globalSlot(String name) {
+	Integer slot = globalSlots.get(name);
+	if (slot != null) return slot;
+
+	slot = globalSlots.size();
+	if (slot == globals.length) {
+	    globals = Arrays.copyOf(globals, slot * 2);
+	}
+	globals[slot] = new Global(name);
+	globalSlots.put(name, slot);
+	return slot;
+    }
+
+    Global global(int slot) {
+	return globals[slot];
+    }
+
+    Object getGlobal(int slot, Token name) {
+	Global global = globals[slot];
+	if (global.defined) return global.value;
+	throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
-    
+
+    void assignGlobal(int slot, Token name, Object value) {
+	Global global = globals[slot];
+	if (!global.defined) {
+	    throw new RuntimeError(name,
+				   "Undefined variable '" + name.lexeme + "'.");
+	}
+	global.value = value;
+    }
+
+    // Globals are keyed by name, locals simply take the next slot.
     // Allow redefinition variables
     // for example:
     /*
@@ -23,36 +89,25 @@ class Environment {
         var a = "after";
         print a; // "after".
     */
-    Object get(Token name) {
-	if (values.containsKey(name.lexeme)) {
-	    return values.get(name.lexeme);
-	}
-	if (enclosing != null) return enclosing.get(name);
-	throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    void assign(Token name, Object value) {
-	if (values.containsKey(name.lexeme)) {
-	    values.put(name.lexeme, value);
+    void define(String name, Object value) {
+	if (globalSlots != null) {
+	    Global global = globals[globalSlot(name)];
+	    global.value = value;
+	    global.defined = true;
 	    return;
 	}
-	if (enclosing != null) {
-	    enclosing.assign(name, value);
-	    return;
+	if (count == slots.length) {
+	    slots = Arrays.copyOf(slots, count * 2);
 	}
-	throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+	slots[count++] = value;
     }
 
-    void define(String name, Object value) {
-	values.put(name, value);
+    Object getAt(int distance, int slot) {
+	return ancestor(distance).slots[slot];
     }
 
-    Object getAt(int distance, String name) {
-	return ancestor(distance).values.get(name);
-    }
-
-    void assignAt(int distance, Token name, Object value) {
-	ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+	ancestor(distance).slots[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -60,7 +115,7 @@ class Environment {
 	for (int i = 0; i < distance; i ++) {
 	    environment = environment.enclosing;
 	}
-	
+
 	return environment;
     }
 }
@@ -9,6 +9,8 @@ abstract class Expr {
         R visitCallExpr(Call expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
+        R visitInlinedExpr(Inlined expr);
+        R visitInvariantExpr(Invariant expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSetExpr(Set expr);
@@ -30,6 +32,8 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot;
     }
     static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
@@ -46,6 +50,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryNode node = BinaryNode.UNINITIALIZED;
     }
     static class Call extends Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -62,6 +67,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        boolean tail;
     }
     static class Get extends Expr {
         Get(Expr object, Token name) {
@@ -76,6 +82,7 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        InlineCache cache = new InlineCache();
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -89,6 +96,38 @@ abstract class Expr {
 
         final Expr expression;
     }
+    static class Inlined extends Expr {
+        Inlined(Expr.Call call, Stmt.Function function, Expr body, int slot) {
+            this.call = call;
+            this.function = function;
+            this.body = body;
+            this.slot = slot;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInlinedExpr(this);
+        }
+
+        final Expr.Call call;
+        final Stmt.Function function;
+        final Expr body;
+        final int slot;
+    }
+    static class Invariant extends Expr {
+        Invariant(Expr expression, int slot) {
+            this.expression = expression;
+            this.slot = slot;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+
+        final Expr expression;
+        final int slot;
+    }
     static class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
@@ -132,6 +171,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache cache = new InlineCache();
     }
     static class Super extends Expr {
         Super(Token keyword, Token method) {
@@ -146,6 +186,7 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int depth = -1;
     }
     static class This extends Expr {
         This(Token keyword) {
@@ -158,6 +199,8 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int depth = -1;
+        int slot;
     }
     static class Unary extends Expr {
         Unary(Token operator, Expr right) {
@@ -184,6 +227,8 @@ abstract class Expr {
         }
 
         final Token name;
+        int depth = -1;
+        int slot;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
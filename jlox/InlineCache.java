@@ -0,0 +1,144 @@
+package com.craftinginterpreters.jlox;
+
+// A polymorphic inline cache for one property get or set site.
+// It remembers the last few receiver shapes seen at the site along with
+// what the lookup found for them, so a repeated access only compares
+// shapes. Since every class has its own root shape, a shape also pins
+// down the class and therefore the method a name resolves to.
+// Every property access in the interpreter and the JIT goes through
+// one of these, so the miss paths are the only full lookups.
+class InlineCache {
+    // Past this many shapes a site is megamorphic and stops caching.
+    private static final int LIMIT = 4;
+
+    private static long monomorphicHits = 0;
+    private static long polymorphicHits = 0;
+    private static long misses = 0;
+    private static int megamorphicSites = 0;
+
+    private final Shape[] shapes = new Shape[LIMIT];
+    // The field's offset, or -1 if the name resolved to a method.
+    private final int[] offsets = new int[LIMIT];
+    // For gets, the method the name resolved to.
+    private final LoxFunction[] methods = new LoxFunction[LIMIT];
+    // For sets, the shape after the store. It's the cached shape itself
+    // unless the store adds a field.
+    private final Shape[] transitions = new Shape[LIMIT];
+    private int count = 0;
+    private boolean megamorphic = false;
+
+    Object get(LoxInstance instance, Token name) {
+	Shape shape = instance.shape;
+	for (int i = 0; i < count; i ++) {
+	    if (shapes[i] == shape) {
+		hit();
+		int offset = offsets[i];
+		if (offset != -1) return instance.getField(offset);
+		return methods[i].bind(instance);
+	    }
+	}
+
+	misses ++;
+	int offset = shape.offsetOf(name.lexeme);
+	if (offset != -1) {
+	    add(shape, offset, null, null);
+	    return instance.getField(offset);
+	}
+
+	LoxFunction method = instance.klass.findMethod(name.lexeme);
+	if (method != null) {
+	    add(shape, -1, method, null);
+	    return method.bind(instance);
+	}
+
+	throw new RuntimeError(name,
+			       "Undefined property '" + name.lexeme + ".");
+    }
+
+    // For invocations, which want the method without binding it.
+    // Returns null if the name is a field, or isn't defined at all,
+    // and the caller should go through get() instead.
+    LoxFunction method(LoxInstance instance, Token name) {
+	Shape shape = instance.shape;
+	for (int i = 0; i < count; i ++) {
+	    if (shapes[i] == shape) {
+		hit();
+		return methods[i];
+	    }
+	}
+
+	misses ++;
+	int offset = shape.offsetOf(name.lexeme);
+	if (offset != -1) {
+	    add(shape, offset, null, null);
+	    return null;
+	}
+
+	LoxFunction method = instance.klass.findMethod(name.lexeme);
+	if (method != null) add(shape, -1, method, null);
+	return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+	Shape shape = instance.shape;
+	for (int i = 0; i < count; i ++) {
+	    if (shapes[i] == shape) {
+		hit();
+		store(instance, offsets[i], transitions[i], value);
+		return;
+	    }
+	}
+
+	misses ++;
+	int offset = shape.offsetOf(name.lexeme);
+	Shape next = shape;
+	if (offset == -1) {
+	    next = shape.with(name.lexeme);
+	    offset = next.size - 1;
+	}
+	add(shape, offset, null, next);
+	store(instance, offset, next, value);
+    }
+
+    private static void store(LoxInstance instance, int offset,
+			      Shape next, Object value) {
+	if (next == instance.shape) {
+	    instance.setField(offset, value);
+	} else {
+	    instance.addField(next, value);
+	}
+    }
+
+    private void hit() {
+	if (count == 1) {
+	    monomorphicHits ++;
+	} else {
+	    polymorphicHits ++;
+	}
+    }
+
+    private void add(Shape shape, int offset, LoxFunction method,
+		     Shape transition) {
+	if (count == LIMIT) {
+	    if (!megamorphic) {
+		megamorphic = true;
+		megamorphicSites ++;
+	    }
+	    return;
+	}
+
+	shapes[count] = shape;
+	offsets[count] = offset;
+	methods[count] = method;
+	transitions[count] = transition;
+	count ++;
+    }
+
+    static void dumpStats() {
+	System.err.println("inline caches: " +
+			   monomorphicHits + " monomorphic hits, " +
+			   polymorphicHits + " polymorphic hits, " +
+			   misses + " misses, " +
+			   megamorphicSites + " megamorphic sites");
+    }
+}
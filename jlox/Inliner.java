@@ -0,0 +1,193 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Copies the bodies of small functions into their call sites, for the
+// Optimizer. A function can be inlined if its body is a single return
+// statement whose expression only uses the function's own frame and
+// globals. That rules out closures, methods and nested functions, so a
+// copy behaves the same wherever it ends up. The copy's frame slots are
+// moved to fresh slots in the caller's frame.
+class Inliner implements Expr.Visitor<Expr> {
+    // The most expression nodes a call site may grow by, counting what
+    // gets inlined into the inlined body in turn. Set by --inline-budget,
+    // 0 turns inlining off.
+    static int budget = 24;
+
+    // The expression a call to the function evaluates, or null if the
+    // body isn't a single return statement.
+    static Expr body(Stmt.Function function) {
+	if (function.hasEnvironment || function.body.size() != 1) return null;
+	Stmt statement = function.body.get(0);
+	if (!(statement instanceof Stmt.Return)) return null;
+	return ((Stmt.Return)statement).value;
+    }
+
+    // Counts the nodes in a function's body expression, or returns -1 if
+    // a copy of it couldn't work: it uses a captured variable, "this" or
+    // "super", or refers to the function itself.
+    static int size(Expr expr, Stmt.Function function) {
+	if (expr instanceof Expr.Literal) return 1;
+	if (expr instanceof Expr.Variable) {
+	    Expr.Variable variable = (Expr.Variable)expr;
+	    return isCopyable(variable.depth, variable.name, function) ? 1 : -1;
+	}
+	if (expr instanceof Expr.Assign) {
+	    Expr.Assign assign = (Expr.Assign)expr;
+	    if (!isCopyable(assign.depth, assign.name, function)) return -1;
+	    return add(1, size(assign.value, function));
+	}
+	if (expr instanceof Expr.Grouping) {
+	    return size(((Expr.Grouping)expr).expression, function);
+	}
+	if (expr instanceof Expr.Unary) {
+	    return add(1, size(((Expr.Unary)expr).right, function));
+	}
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary)expr;
+	    return add(1, add(size(binary.left, function),
+			      size(binary.right, function)));
+	}
+	if (expr instanceof Expr.Logical) {
+	    Expr.Logical logical = (Expr.Logical)expr;
+	    return add(1, add(size(logical.left, function),
+			      size(logical.right, function)));
+	}
+	if (expr instanceof Expr.Get) {
+	    return add(1, size(((Expr.Get)expr).object, function));
+	}
+	if (expr instanceof Expr.Set) {
+	    Expr.Set set = (Expr.Set)expr;
+	    return add(1, add(size(set.object, function),
+			      size(set.value, function)));
+	}
+	if (expr instanceof Expr.Call) {
+	    Expr.Call call = (Expr.Call)expr;
+	    int size = add(1, size(call.callee, function));
+	    for (Expr argument : call.arguments) {
+		size = add(size, size(argument, function));
+	    }
+	    return size;
+	}
+	if (expr instanceof Expr.Inlined) {
+	    Expr.Inlined inlined = (Expr.Inlined)expr;
+	    return add(size(inlined.call, function),
+		       size(inlined.body, function));
+	}
+	return -1;
+    }
+
+    private static boolean isCopyable(int depth, Token name,
+				      Stmt.Function function) {
+	if (depth == Resolver.FRAME) return true;
+	return depth == -1 && !name.lexeme.equals(function.name.lexeme);
+    }
+
+    private static int add(int a, int b) {
+	if (a == -1 || b == -1) return -1;
+	return a + b;
+    }
+
+    // Copies an expression that size() accepted, moving its frame slots
+    // up by base.
+    static Expr copy(Expr expr, int base) {
+	return expr.accept(new Inliner(base));
+    }
+
+    private final int base;
+
+    private Inliner(int base) {
+	this.base = base;
+    }
+
+    private Expr copy(Expr expr) {
+	return expr.accept(this);
+    }
+
+    private int slot(int depth, int slot) {
+	return depth == Resolver.FRAME ? base + slot : slot;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+	Expr.Assign copy = new Expr.Assign(expr.name, copy(expr.value));
+	copy.depth = expr.depth;
+	copy.slot = slot(expr.depth, expr.slot);
+	return copy;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+	return new Expr.Binary(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    // The copy is never in tail position, whatever the original was.
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+	List<Expr> arguments = new ArrayList<>();
+	for (Expr argument : expr.arguments) {
+	    arguments.add(copy(argument));
+	}
+	return new Expr.Call(copy(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+	return new Expr.Get(copy(expr.object), expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+	return new Expr.Grouping(copy(expr.expression));
+    }
+
+    @Override
+    public Expr visitInlinedExpr(Expr.Inlined expr) {
+	return new Expr.Inlined((Expr.Call)copy(expr.call), expr.function,
+				copy(expr.body), base + expr.slot);
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+	return new Expr.Invariant(copy(expr.expression), base + expr.slot);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+	return new Expr.Logical(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+	return new Expr.Set(copy(expr.object), expr.name, copy(expr.value));
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+	throw new IllegalStateException("Can't copy super.");
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+	throw new IllegalStateException("Can't copy this.");
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+	return new Expr.Unary(expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+	Expr.Variable copy = new Expr.Variable(expr.name);
+	copy.depth = expr.depth;
+	copy.slot = slot(expr.depth, expr.slot);
+	return copy;
+    }
+}
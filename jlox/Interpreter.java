@@ -1,7 +1,7 @@
 package com.craftinginterpreters.jlox;
 
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,7 +11,31 @@ class Interpreter implements Expr.Visitor<Object>,
 
     // The environment field in the interpreter changes as we enter and exit local scopes. It tracks the current environment.
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+
+    // Locals that no closure captures live here instead of in an
+    // Environment. Each call takes the next frameSize slots and hands
+    // them back when it returns, so calls and blocks don't allocate
+    // anything for them.
+    private Object[] stack = new Object[256];
+    // The current call's first slot, and the first slot past its frame.
+    private int fp = 0;
+    private int sp = 0;
+
+    // Set by a return statement. Blocks and loops stop as soon as they
+    // see it, and the function call it returns from clears it again.
+    private boolean returning = false;
+    private Object returnValue = null;
+
+    // A call in tail position isn't made by the return statement itself.
+    // It's left here, and the LoxFunction.callMethod() being returned
+    // from makes it once that function's frames are gone. That way
+    // tail-recursive code runs in constant stack space.
+    LoxFunction tailFunction = null;
+    LoxInstance tailReceiver = null;
+    Object tailA = null;
+    Object tailB = null;
+    Object tailC = null;
+    Object[] tailRest = null;
 
     Interpreter() {
 	globals.define("clock", new LoxCallable(){
@@ -19,17 +43,24 @@ class Interpreter implements Expr.Visitor<Object>,
 		public int arity() { return 0; }
 
 		@Override
-		public Object call(Interpreter interpreter,
-				   List<Object> arguments) {
+		public Object call0(Interpreter interpreter) {
 		    return (double)System.currentTimeMillis() / 1000.0;
 		}
 
+		@Override
+		public Object call(Interpreter interpreter,
+				   Object[] arguments) {
+		    return call0(interpreter);
+		}
+
 		@Override
 		public String toString() { return "<native fn>"; }
 	    });
     }
     
-    void interpret(List<Stmt> statements) {
+    void interpret(List<Stmt> statements, int frameSize) {
+	int previous = fp;
+	int base = pushFrame(frameSize);
 	try {
 	    for (Stmt statement : statements) {
 		execute(statement);
@@ -38,6 +69,67 @@ class Interpreter implements Expr.Visitor<Object>,
 	    // System.out.println(stringify(value));
 	} catch (RuntimeError error) {
 	    Lox.runtimeError(error);
+	} finally {
+	    popFrame(base, previous);
+	}
+    }
+
+    // Runs a function body in a new frame, with the arguments bound to
+    // its parameters. Parameters are the first slots in the frame. The
+    // arguments are passed the way LoxFunction.callMethod() takes them.
+    void executeCall(Stmt.Function function, Environment environment,
+		     Object a, Object b, Object c, Object[] rest) {
+	int previous = fp;
+	int base = pushFrame(function.frameSize);
+	int arity = function.params.size();
+	if (rest != null) {
+	    for (int i = 0; i < arity; i ++) {
+		bind(function, environment, base, i, rest[i]);
+	    }
+	} else {
+	    if (arity > 0) bind(function, environment, base, 0, a);
+	    if (arity > 1) bind(function, environment, base, 1, b);
+	    if (arity > 2) bind(function, environment, base, 2, c);
+	}
+	try {
+	    executeBlock(function.body, environment);
+	} finally {
+	    popFrame(base, previous);
+	}
+    }
+
+    private void bind(Stmt.Function function, Environment environment,
+		      int base, int i, Object value) {
+	if (function.capturedParams[i]) {
+	    environment.define(function.params.get(i).lexeme, value);
+	} else {
+	    stack[base + i] = value;
+	}
+    }
+
+    private int pushFrame(int size) {
+	int base = sp;
+	if (base + size > stack.length) {
+	    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + size));
+	}
+	fp = base;
+	sp = base + size;
+	return base;
+    }
+
+    private void popFrame(int base, int previous) {
+	// Don't keep the frame's values alive.
+	Arrays.fill(stack, base, sp, null);
+	sp = base;
+	fp = previous;
+    }
+
+    // Stores a declared variable where the Resolver put it.
+    private void declare(int slot, String name, Object value) {
+	if (slot != -1) {
+	    stack[fp + slot] = value;
+	} else {
+	    environment.define(name, value);
 	}
     }
     
@@ -69,16 +161,17 @@ class Interpreter implements Expr.Visitor<Object>,
 	}
 
 	Object value = evaluate(expr.value);
-	((LoxInstance)object).set(expr.name, value);
+	expr.cache.set((LoxInstance)object, expr.name, value);
 	return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-	int distance = locals.get(expr);
+	int distance = expr.depth;
 	// look up the surrouding class's superclass by looking up "super" in the proper environment
-	LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-	LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+	// "super" and "this" are always the only slot in their scopes.
+	LoxClass superclass = (LoxClass)environment.getAt(distance, 0);
+	LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
 	LoxFunction method = superclass.findMethod(expr.method.lexeme);
 	if (method == null) {
 	    throw new RuntimeError(expr.method,
@@ -89,7 +182,7 @@ class Interpreter implements Expr.Visitor<Object>,
     
     @Override
     public Object visitThisExpr(Expr.This expr) {
-	return lookUpVariable(expr.keyword, expr);
+	return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     // node explicit parentheses in an expression
@@ -98,24 +191,100 @@ class Interpreter implements Expr.Visitor<Object>,
 	return evaluate(expr.expression);
     }
 
+    // A call the Optimizer inlined. The guard makes sure the callee is
+    // still the function that was inlined, or else makes the call.
+    @Override
+    public Object visitInlinedExpr(Expr.Inlined expr) {
+	Expr.Call call = expr.call;
+	Object callee = evaluate(call.callee);
+	if (!isInlined(callee, expr)) {
+	    try {
+		return call(callee, null, call);
+	    } catch (StackOverflowError error) {
+		throw stackOverflow(call.paren);
+	    }
+	}
+
+	for (int i = 0; i < call.arguments.size(); i ++) {
+	    stack[fp + expr.slot + i] = evaluate(call.arguments.get(i));
+	}
+	return evaluate(expr.body);
+    }
+
+    static boolean isInlined(Object callee, Expr.Inlined expr) {
+	return callee instanceof LoxFunction &&
+	    ((LoxFunction)callee).declaration == expr.function;
+    }
+
+    // An expression the Optimizer hoisted out of a loop. Its slot is
+    // empty until it's first evaluated in the current run of the loop.
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+	Object value = stack[fp + expr.slot];
+	if (value == null) {
+	    value = evaluate(expr.expression);
+	    stack[fp + expr.slot] = value;
+	}
+	return value;
+    }
+
+    // Loops forget the values hoisted out of them each time they start.
+    private void clearInvariants(int[] slots) {
+	for (int slot : slots) {
+	    stack[fp + slot] = null;
+	}
+    }
+
     // send the expression back into the interpreter's visitor 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
 	return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-	stmt.accept(this);
+    // Typed evaluation for --specialize mode. Number nodes use it on their
+    // operands so intermediate results never get boxed. Throws
+    // UnexpectedResult with the boxed value if it isn't a number.
+    double evaluateDouble(Expr expr) {
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary)expr;
+	    return binary.node.executeDouble(this, binary);
+	}
+	if (expr instanceof Expr.Grouping) {
+	    return evaluateDouble(((Expr.Grouping)expr).expression);
+	}
+
+	Object value = evaluate(expr);
+	if (value instanceof Double) return (double)value;
+	throw new BinaryNode.UnexpectedResult(value);
+    }
+
+    // Conditions of if and while skip the Boolean round trip
+    // when a comparison node has been specialized.
+    private boolean evaluateCondition(Expr condition) {
+	if (BinaryNode.enabled && condition instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary)condition;
+	    try {
+		return binary.node.executeBoolean(this, binary);
+	    } catch (BinaryNode.UnexpectedResult result) {
+		return isTruthy(result.value);
+	    }
+	}
+	return isTruthy(evaluate(condition));
     }
 
-    void resolve(Expr expr, int depth) {
-	locals.put(expr, depth);
+    private void execute(Stmt stmt) {
+	stmt.accept(this);
     }
 
     // To execute a block, we create a new environment for the block’s scope.
     // pass it off to executeBlock();
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-	executeBlock(stmt.statements, new Environment(environment));
+	// Blocks whose locals all live in the frame don't need a scope.
+	if (stmt.hasEnvironment) {
+	    executeBlock(stmt.statements, new Environment(environment));
+	} else {
+	    executeBlock(stmt.statements, environment);
+	}
 	return null;
     }
 
@@ -129,8 +298,6 @@ class Interpreter implements Expr.Visitor<Object>,
 				       "Superclass must be a class.");
 	    }
 	}
-	environment.define(stmt.name.lexeme, null);
-
 	if (stmt.superclass != null) {
 	    environment = new Environment(environment);
 	    environment.define("super", superclass);
@@ -148,7 +315,9 @@ class Interpreter implements Expr.Visitor<Object>,
 	if (superclass != null) {
 	    environment = environment.enclosing;
 	}
-	environment.assign(stmt.name, klass);
+	// The methods only see the class through their closure once they run,
+	// so the name can be defined after the class exists.
+	declare(stmt.slot, stmt.name.lexeme, klass);
 	return null;
     }
 
@@ -163,6 +332,7 @@ class Interpreter implements Expr.Visitor<Object>,
 	    //isits all of the statements
 	    for (Stmt statement : statements) {
 		execute(statement);
+		if (returning) break;
 	    }
 	} finally {
 	    // restore previous environment
@@ -182,14 +352,14 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
 	LoxFunction function = new LoxFunction(stmt, environment, false);
-	environment.define(stmt.name.lexeme, function);
+	declare(stmt.slot, stmt.name.lexeme, function);
 	return null;
     }
 
     // Actually, the interpreter implementation is a thin wrapper around the self-same Java code.
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-	if (isTruthy(evaluate(stmt.condition))) {
+	if (evaluateCondition(stmt.condition)) {
 	    execute(stmt.thenBranch);
 	} else if (stmt.elseBranch != null) {
 	    execute(stmt.elseBranch);
@@ -209,7 +379,18 @@ class Interpreter implements Expr.Visitor<Object>,
 	Object value = null;
 	if (stmt.value != null) value = evaluate(stmt.value);
 
-	throw new Return(value);
+	returning = true;
+	returnValue = value;
+	return null;
+    }
+
+    // Called by a function once its body is done. Returns what the body
+    // returned, or nil if it ran off the end.
+    Object finishCall() {
+	Object value = returnValue;
+	returning = false;
+	returnValue = null;
+	return value;
     }
 
     @Override
@@ -219,14 +400,37 @@ class Interpreter implements Expr.Visitor<Object>,
 	    value = evaluate(stmt.initializer);
 	}
 
-	environment.define(stmt.name.lexeme, value);
+	declare(stmt.slot, stmt.name.lexeme, value);
+	return null;
+    }
+
+    // The increment runs right after the body, in the loop's scope, so an
+    // iteration doesn't need a scope of its own.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+	Environment previous = environment;
+	try {
+	    if (stmt.hasEnvironment) environment = new Environment(environment);
+	    if (stmt.initializer != null) execute(stmt.initializer);
+	    clearInvariants(stmt.invariants);
+	    while (stmt.condition == null ||
+		   evaluateCondition(stmt.condition)) {
+		execute(stmt.body);
+		if (returning) break;
+		if (stmt.increment != null) evaluate(stmt.increment);
+	    }
+	} finally {
+	    environment = previous;
+	}
 	return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-	while (isTruthy(evaluate(stmt.condition))) {
+	clearInvariants(stmt.invariants);
+	while (evaluateCondition(stmt.condition)) {
 	    execute(stmt.body);
+	    if (returning) break;
 	}
 	return null;
     }
@@ -234,11 +438,12 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
 	Object value = evaluate(expr.value);
-	Integer distance = locals.get(expr);
-	if (distance != null) {
-	    environment.assignAt(distance, expr.name, value);
+	if (expr.depth == Resolver.FRAME) {
+	    stack[fp + expr.slot] = value;
+	} else if (expr.depth != -1) {
+	    environment.assignAt(expr.depth, expr.slot, value);
 	} else {
-	    globals.assign(expr.name, value);
+	    globals.assignGlobal(expr.slot, expr.name, value);
 	}
 	
 	return value;
@@ -246,33 +451,41 @@ class Interpreter implements Expr.Visitor<Object>,
     
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+	// In --specialize mode the node picks an implementation for the
+	// operand types it has seen so far.
+	if (BinaryNode.enabled) return expr.node.execute(this, expr);
+
 	Object left = evaluate(expr.left);
 	Object right = evaluate(expr.right);
-	switch (expr.operator.type) {
+	return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+	switch (operator.type) {
 	case GREATER:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left > (double)right;
 	case GREATER_EQUAL:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left >= (double)right;
 	case LESS:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left < (double)right;
 	case LESS_EQUAL:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left <= (double)right;
 	case BANG_EQUAL:
 	    return !isEqual(left, right);
 	case EQUAL_EQUAL:
 	    return isEqual(left, right);
 	case MINUS:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left - (double)right;
 	case SLASH:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left / (double)right;
 	case STAR:
-	    checkNumberOperands(expr.operator, left, right);
+	    checkNumberOperands(operator, left, right);
 	    return (double)left * (double)right;
 	case PLUS:
 	    if (left instanceof Double && right instanceof Double) {
@@ -283,7 +496,7 @@ class Interpreter implements Expr.Visitor<Object>,
 		return (String)left + (String)right; 
 	    }
 
-	    throw new RuntimeError(expr.operator,
+	    throw new RuntimeError(operator,
 				   "Operands must be two or two strings.");
 	}
 
@@ -293,26 +506,108 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-	Object callee = evaluate(expr.callee);
+	try {
+	    if (expr.callee instanceof Expr.Get) {
+		return invoke((Expr.Get)expr.callee, expr);
+	    }
+
+	    return call(evaluate(expr.callee), null, expr);
+	} catch (StackOverflowError error) {
+	    throw stackOverflow(expr.paren);
+	}
+    }
+
+    // Lox calls nest Java calls, so deep enough recursion runs out of
+    // thread stack. Call sites catch that and report it at their line.
+    // If even that overflows, the next call site out tries again.
+    static RuntimeError stackOverflow(Token paren) {
+	return new RuntimeError(paren, "Stack overflow.");
+    }
+
+    // obj.method(...) calls the method on obj directly, instead of
+    // binding it into a new LoxFunction that's dropped after the call.
+    private Object invoke(Expr.Get get, Expr.Call expr) {
+	Object object = evaluate(get.object);
+	if (!(object instanceof LoxInstance)) {
+	    throw new RuntimeError(get.name,
+				   "Only instance have properties.");
+	}
 
-	List<Object> arguments = new ArrayList<>();
-	for (Expr argument : expr.arguments) {
-	    arguments.add(evaluate(argument));
+	LoxInstance instance = (LoxInstance)object;
+	LoxFunction method = get.cache.method(instance, get.name);
+	if (method == null) {
+	    // A field, which may still hold something callable.
+	    return call(get.cache.get(instance, get.name), null, expr);
+	}
+	return call(method, instance, expr);
+    }
+
+    // Evaluates the arguments and makes the call. The first three are
+    // kept in locals rather than collected, see LoxFunction.callMethod().
+    private Object call(Object callee, LoxInstance receiver, Expr.Call expr) {
+	List<Expr> arguments = expr.arguments;
+	int count = arguments.size();
+	if (count > 3) {
+	    Object[] rest = new Object[count];
+	    for (int i = 0; i < count; i ++) {
+		rest[i] = evaluate(arguments.get(i));
+	    }
+	    return call(callee, receiver, count, null, null, null, rest, expr);
 	}
 
+	Object a = count > 0 ? evaluate(arguments.get(0)) : null;
+	Object b = count > 1 ? evaluate(arguments.get(1)) : null;
+	Object c = count > 2 ? evaluate(arguments.get(2)) : null;
+	return call(callee, receiver, count, a, b, c, null, expr);
+    }
+
+    // Shared with the Jit, which evaluates the callee and arguments
+    // itself. A receiver means the callee is a method invoke() found on
+    // it. Lox functions are called directly, which spares the JVM a
+    // dispatch it can't predict at a site that also calls classes. A
+    // call in tail position to one is deferred, see tailFunction. Calls
+    // to other kinds of callables don't grow the stack by much, so
+    // they're made straight away, through the entry point for their
+    // number of arguments.
+    Object call(Object callee, LoxInstance receiver, int count,
+		Object a, Object b, Object c, Object[] rest, Expr.Call expr) {
 	// check the type ourselves first
 	if (!(callee instanceof LoxCallable)) {
 	    throw new RuntimeError(expr.paren,
 				   "Can only call fun ctions and classes.");
 	}
-	
+
 	LoxCallable function = (LoxCallable)callee;
-	if (arguments.size() != function.arity()) {
-	    throw new RuntimeError(expr.paren, "Expected " +
+	checkArity(function, count, expr.paren);
+	if (callee instanceof LoxFunction) {
+	    LoxFunction lox = (LoxFunction)callee;
+	    if (expr.tail) {
+		tailFunction = lox;
+		tailReceiver = receiver;
+		tailA = a;
+		tailB = b;
+		tailC = c;
+		tailRest = rest;
+		return null;
+	    }
+	    return lox.callMethod(this, receiver, a, b, c, rest);
+	}
+
+	switch (count) {
+	case 0:  return function.call0(this);
+	case 1:  return function.call1(this, a);
+	case 2:  return function.call2(this, a, b);
+	case 3:  return function.call3(this, a, b, c);
+	default: return function.call(this, rest);
+	}
+    }
+
+    static void checkArity(LoxCallable function, int count, Token paren) {
+	if (count != function.arity()) {
+	    throw new RuntimeError(paren, "Expected " +
 				   function.arity() + " arguments but got "+
-				   arguments.size() + ".");
+				   count + ".");
 	}
-	return function.call(this, arguments);
     }
 
     
@@ -320,7 +615,7 @@ class Interpreter implements Expr.Visitor<Object>,
     public Object visitGetExpr(Expr.Get expr) {
 	Object object = evaluate(expr.object);
 	if (object instanceof LoxInstance) {
-	    return ((LoxInstance) object).get(expr.name);
+	    return expr.cache.get((LoxInstance)object, expr.name);
 	}
 
 	throw new RuntimeError(expr.name,
@@ -345,43 +640,46 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-	return lookUpVariable(expr.name, expr);
+	return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-	Integer distance = locals.get(expr);
-	if (distance != null) {
-	    return environment.getAt(distance, name.lexeme);
+    // A depth of -1 means the Resolver didn't find it in any local scope,
+    // and gave it the global's slot.
+    private Object lookUpVariable(Token name, int depth, int slot) {
+	if (depth == Resolver.FRAME) {
+	    return stack[fp + slot];
+	} else if (depth != -1) {
+	    return environment.getAt(depth, slot);
 	} else {
-	    return globals.get(name);
+	    return globals.getGlobal(slot, name);
 	}
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
 	if (operand instanceof Double) return;
 	throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
 	if (left instanceof Double && right instanceof Double) return;
 
 	throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
 	if (object == null) return false;
 	if (object instanceof Boolean) return (boolean) object;
 	return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
 	if (a == null && b == null) return true;
 	if (a == null) return false;
 
 	return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
 	if (object == null) return "nil";
 
 	if (object instanceof Double) {
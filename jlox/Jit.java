@@ -0,0 +1,656 @@
+package com.craftinginterpreters.jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.jlox.ClassFileWriter.*;
+
+// Compiles hot Lox functions into JVM classes so HotSpot can optimize them.
+// Lox locals become JVM locals and each operation calls a small static
+// helper below, which HotSpot inlines. Functions using anything the
+// compiler doesn't handle yet keep running on the tree-walker.
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static boolean enabled = false;
+    // Calls before a function gets compiled.
+    static int threshold = 1000;
+    private static int classCount = 0;
+
+    // Superclass of every generated class.
+    abstract static class Code {
+	Object[] constants;
+
+	// Takes the arguments the way LoxFunction.callMethod() does.
+	abstract Object invoke(Interpreter interpreter, Object a, Object b,
+			       Object c, Object[] rest);
+    }
+
+    // Thrown for code the compiler can't translate.
+    private static class Unsupported extends RuntimeException {
+	Unsupported() {
+	    super(null, null, false, false);
+	}
+    }
+
+    private static final String PACKAGE = "com/craftinginterpreters/jlox/";
+    private static final String CODE = PACKAGE + "Jit$Code";
+    private static final String JIT = PACKAGE + "Jit";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String INTERPRETER = "L" + PACKAGE + "Interpreter;";
+    private static final String FUNCTION = "L" + PACKAGE + "LoxFunction;";
+    private static final String GET = "L" + PACKAGE + "Expr$Get;";
+
+    // Returns the compiled body once the function is hot, or null.
+    static Code compiled(Stmt.Function function) {
+	if (function.compiled != null) return function.compiled;
+	if (function.uncompilable || ++function.calls < threshold) return null;
+
+	try {
+	    function.compiled = new Jit(function).compile();
+	} catch (Unsupported | ClassFileWriter.TooLarge error) {
+	    function.uncompilable = true;
+	} catch (VerifyError error) {
+	    // A bug in the code generator. Say so, since the function
+	    // carries on running, just slower, on the tree-walker.
+	    System.err.println("[jit] Couldn't compile " +
+			       function.name.lexeme + ": " + error.getMessage());
+	    function.uncompilable = true;
+	}
+	return function.compiled;
+    }
+
+    private final Stmt.Function function;
+    private final String className;
+    private final ClassFileWriter writer;
+    private ClassFileWriter.Code code;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    // Locals 0-5 are this, the interpreter and the arguments: a, b, c
+    // and rest. Frame slots follow, so each Lox local has its own JVM
+    // local.
+    private static final int FIRST_SLOT = 6;
+
+    private Jit(Stmt.Function function) {
+	this.function = function;
+	this.className = PACKAGE + "LoxJit$" + function.name.lexeme + "$" + classCount++;
+	this.writer = new ClassFileWriter(className, CODE);
+    }
+
+    private Code compile() {
+	ClassFileWriter.Code init = writer.method("<init>", "()V", 1);
+	init.aload(0);
+	init.invoke(INVOKESPECIAL, CODE, "<init>", "()V");
+	init.op(RETURN, 0);
+
+	code = writer.method("invoke", "(" + INTERPRETER + OBJECT + OBJECT +
+			     OBJECT + "[" + OBJECT + ")" + OBJECT, FIRST_SLOT);
+	// Anything captured would need an Environment, which compiled code
+	// doesn't have.
+	if (function.hasEnvironment) throw new Unsupported();
+	int arity = function.params.size();
+	for (int i = 0; i < arity; i ++) {
+	    if (arity > 3) {
+		code.aload(5);
+		code.iconst(i);
+		code.op(AALOAD, -1);
+	    } else {
+		code.aload(2 + i);
+	    }
+	    code.astore(FIRST_SLOT + i);
+	}
+	for (Stmt statement : function.body) {
+	    compile(statement);
+	}
+	code.op(ACONST_NULL, 1);
+	code.op(ARETURN, -1);
+
+	byte[] bytes = writer.toByteArray();
+	try {
+	    Class<?> generated = MethodHandles.lookup().defineClass(bytes);
+	    Code compiled = (Code)generated.getDeclaredConstructor().newInstance();
+	    compiled.constants = constants.toArray();
+	    return compiled;
+	} catch (ReflectiveOperationException error) {
+	    throw new IllegalStateException(error);
+	}
+    }
+
+    private void compile(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+	expr.accept(this);
+    }
+
+    private void constant(Object value) {
+	Integer index = constantIndex.get(value);
+	if (index == null) {
+	    index = constants.size();
+	    constants.add(value);
+	    constantIndex.put(value, index);
+	}
+	code.aload(0);
+	code.field(GETFIELD, CODE, "constants", "[" + OBJECT);
+	code.iconst(index);
+	code.op(AALOAD, -1);
+    }
+
+    private void token(Token token) {
+	constant(token);
+	code.checkcast(PACKAGE + "Token");
+    }
+
+    // Loads an AST node, for helpers that keep state on it.
+    private void node(Expr expr, String className) {
+	constant(expr);
+	code.checkcast(PACKAGE + className);
+    }
+
+    private void helper(String name, String descriptor) {
+	code.invoke(INVOKESTATIC, JIT, name, descriptor);
+    }
+
+    private void truthy() {
+	code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isTruthy",
+		    "(" + OBJECT + ")Z");
+    }
+
+    // Finds the JVM local for a resolved variable. Only locals in the
+    // function's own frame have one.
+    private int local(int depth, int slot) {
+	if (depth != Resolver.FRAME) throw new Unsupported();
+	return FIRST_SLOT + slot;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	if (stmt.hasEnvironment) throw new Unsupported();
+	for (Stmt statement : stmt.statements) {
+	    compile(statement);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	compile(stmt.expression);
+	code.op(POP, -1);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	Label elseBranch = new Label();
+	Label end = new Label();
+	compile(stmt.condition);
+	truthy();
+	code.jump(IFEQ, elseBranch);
+	compile(stmt.thenBranch);
+	code.jump(GOTO, end);
+	code.mark(elseBranch);
+	if (stmt.elseBranch != null) compile(stmt.elseBranch);
+	code.mark(end);
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	compile(stmt.expression);
+	helper("print", "(" + OBJECT + ")V");
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.value != null) {
+	    compile(stmt.value);
+	} else {
+	    code.op(ACONST_NULL, 1);
+	}
+	code.op(ARETURN, -1);
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	if (stmt.initializer != null) {
+	    compile(stmt.initializer);
+	} else {
+	    code.op(ACONST_NULL, 1);
+	}
+	if (stmt.slot == -1) throw new Unsupported();
+	code.astore(FIRST_SLOT + stmt.slot);
+	return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+	if (stmt.hasEnvironment) throw new Unsupported();
+	if (stmt.initializer != null) compile(stmt.initializer);
+	clearInvariants(stmt.invariants);
+
+	Label start = new Label();
+	Label end = new Label();
+	code.mark(start);
+	if (stmt.condition != null) {
+	    compile(stmt.condition);
+	    truthy();
+	    code.jump(IFEQ, end);
+	}
+	compile(stmt.body);
+	if (stmt.increment != null) {
+	    compile(stmt.increment);
+	    code.op(POP, -1);
+	}
+	code.jump(GOTO, start);
+	code.mark(end);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	clearInvariants(stmt.invariants);
+	Label start = new Label();
+	Label end = new Label();
+	code.mark(start);
+	compile(stmt.condition);
+	truthy();
+	code.jump(IFEQ, end);
+	compile(stmt.body);
+	code.jump(GOTO, start);
+	code.mark(end);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	compile(expr.value);
+	if (expr.depth != -1) {
+	    code.op(DUP, 1);
+	    code.astore(local(expr.depth, expr.slot));
+	} else {
+	    code.aload(1);
+	    code.iconst(expr.slot);
+	    token(expr.name);
+	    helper("assignGlobal",
+		   "(" + OBJECT + INTERPRETER + "I" + TOKEN + ")" + OBJECT);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	compile(expr.left);
+	compile(expr.right);
+	String name;
+	switch (expr.operator.type) {
+	case BANG_EQUAL:    name = "notEqual";     break;
+	case EQUAL_EQUAL:   name = "equal";        break;
+	case GREATER:       name = "greater";      break;
+	case GREATER_EQUAL: name = "greaterEqual"; break;
+	case LESS:          name = "less";         break;
+	case LESS_EQUAL:    name = "lessEqual";    break;
+	case PLUS:          name = "add";          break;
+	case MINUS:         name = "subtract";     break;
+	case STAR:          name = "multiply";     break;
+	case SLASH:         name = "divide";       break;
+	default:            throw new Unsupported();
+	}
+	token(expr.operator);
+	helper(name, "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	if (expr.callee instanceof Expr.Get) {
+	    invoke((Expr.Get)expr.callee, expr);
+	    return null;
+	}
+
+	compile(expr.callee);
+	call(expr);
+	return null;
+    }
+
+    // Calls the callee on the stack. A tail call returns straight away,
+    // so the compiled code can't tell whether the helper made the call
+    // or left it to LoxFunction.callMethod().
+    private void call(Expr.Call expr) {
+	arguments(expr);
+	code.aload(1);
+	node(expr, "Expr$Call");
+	helper("call", "(" + OBJECT + OBJECT + OBJECT + OBJECT + "[" + OBJECT +
+	       INTERPRETER + "L" + PACKAGE + "Expr$Call;)" + OBJECT);
+    }
+
+    // Like Interpreter.invoke(). The receiver, the unbound method and,
+    // if the name turned out to be a field, its value wait on the stack
+    // while the arguments are evaluated.
+    private void invoke(Expr.Get get, Expr.Call expr) {
+	compile(get.object);
+	code.op(DUP, 1);
+	node(get, "Expr$Get");
+	helper("method", "(" + OBJECT + GET + ")" + FUNCTION);
+	code.op(DUP2, 2);
+	node(get, "Expr$Get");
+	helper("field", "(" + OBJECT + FUNCTION + GET + ")" + OBJECT);
+	arguments(expr);
+	code.aload(1);
+	node(expr, "Expr$Call");
+	helper("invoke", "(" + OBJECT + FUNCTION + OBJECT + OBJECT + OBJECT +
+	       OBJECT + "[" + OBJECT + INTERPRETER + "L" + PACKAGE +
+	       "Expr$Call;)" + OBJECT);
+    }
+
+    // Pushes a, b, c and rest, as LoxFunction.callMethod() takes them.
+    private void arguments(Expr.Call expr) {
+	int count = expr.arguments.size();
+	if (count > 3) {
+	    code.op(ACONST_NULL, 1);
+	    code.op(ACONST_NULL, 1);
+	    code.op(ACONST_NULL, 1);
+	    code.iconst(count);
+	    code.anewarray("java/lang/Object");
+	    for (int i = 0; i < count; i ++) {
+		code.op(DUP, 1);
+		code.iconst(i);
+		compile(expr.arguments.get(i));
+		code.op(AASTORE, -3);
+	    }
+	    return;
+	}
+
+	for (int i = 0; i < count; i ++) {
+	    compile(expr.arguments.get(i));
+	}
+	for (int i = count; i < 4; i ++) {
+	    code.op(ACONST_NULL, 1);
+	}
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	compile(expr.object);
+	node(expr, "Expr$Get");
+	helper("get", "(" + OBJECT + GET + ")" + OBJECT);
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	compile(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined expr) {
+	Expr.Call call = expr.call;
+	Label fallback = new Label();
+	Label end = new Label();
+	compile(call.callee);
+	code.op(DUP, 1);
+	node(expr, "Expr$Inlined");
+	code.invoke(INVOKESTATIC, PACKAGE + "Interpreter", "isInlined",
+		    "(" + OBJECT + "L" + PACKAGE + "Expr$Inlined;)Z");
+	code.jump(IFEQ, fallback);
+	code.op(POP, -1);
+	for (int i = 0; i < call.arguments.size(); i ++) {
+	    compile(call.arguments.get(i));
+	    code.astore(local(Resolver.FRAME, expr.slot + i));
+	}
+	compile(expr.body);
+	code.jump(GOTO, end);
+
+	// The callee is still on the stack.
+	code.mark(fallback);
+	call(call);
+	code.mark(end);
+	return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+	int local = local(Resolver.FRAME, expr.slot);
+	Label cached = new Label();
+	code.aload(local);
+	code.op(DUP, 1);
+	code.jump(IFNONNULL, cached);
+	code.op(POP, -1);
+	compile(expr.expression);
+	code.op(DUP, 1);
+	code.astore(local);
+	code.mark(cached);
+	return null;
+    }
+
+    private void clearInvariants(int[] slots) {
+	for (int slot : slots) {
+	    code.op(ACONST_NULL, 1);
+	    code.astore(local(Resolver.FRAME, slot));
+	}
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	if (expr.value == null) {
+	    code.op(ACONST_NULL, 1);
+	} else if (expr.value instanceof Boolean) {
+	    code.field(GETSTATIC, "java/lang/Boolean",
+		       (Boolean)expr.value ? "TRUE" : "FALSE",
+		       "Ljava/lang/Boolean;");
+	} else {
+	    constant(expr.value);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	Label end = new Label();
+	compile(expr.left);
+	code.op(DUP, 1);
+	truthy();
+	code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+	code.op(POP, -1);
+	compile(expr.right);
+	code.mark(end);
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	compile(expr.object);
+	token(expr.name);
+	helper("checkFields", "(" + OBJECT + TOKEN + ")" + OBJECT);
+	compile(expr.value);
+	node(expr, "Expr$Set");
+	helper("set", "(" + OBJECT + OBJECT + "L" + PACKAGE + "Expr$Set;)" + OBJECT);
+	return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+	throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+	throw new Unsupported();
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	compile(expr.right);
+	if (expr.operator.type == TokenType.BANG) {
+	    helper("not", "(" + OBJECT + ")" + OBJECT);
+	} else {
+	    token(expr.operator);
+	    helper("negate", "(" + OBJECT + TOKEN + ")" + OBJECT);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	if (expr.depth != -1) {
+	    code.aload(local(expr.depth, expr.slot));
+	} else {
+	    code.aload(1);
+	    code.iconst(expr.slot);
+	    token(expr.name);
+	    helper("global", "(" + INTERPRETER + "I" + TOKEN + ")" + OBJECT);
+	}
+	return null;
+    }
+
+    // Runtime helpers called from generated code.
+    // They behave exactly like the matching Interpreter visit methods.
+
+    static Object global(Interpreter interpreter, int slot, Token name) {
+	return interpreter.globals.getGlobal(slot, name);
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter,
+			       int slot, Token name) {
+	interpreter.globals.assignGlobal(slot, name, value);
+	return value;
+    }
+
+    static Object equal(Object left, Object right, Token operator) {
+	return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right, Token operator) {
+	return !Interpreter.isEqual(left, right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left >= (double)right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left <= (double)right;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+	if (left instanceof Double && right instanceof Double) {
+	    return (double)left + (double)right;
+	}
+	if (left instanceof String && right instanceof String) {
+	    return (String)left + (String)right;
+	}
+	throw new RuntimeError(operator,
+			       "Operands must be two or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+	Interpreter.checkNumberOperands(operator, left, right);
+	return (double)left / (double)right;
+    }
+
+    static Object not(Object right) {
+	return !Interpreter.isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+	Interpreter.checkNumberOperand(operator, right);
+	return -(double)right;
+    }
+
+    static Object call(Object callee, Object a, Object b, Object c,
+		       Object[] rest, Interpreter interpreter, Expr.Call expr) {
+	try {
+	    return interpreter.call(callee, null, expr.arguments.size(),
+				    a, b, c, rest, expr);
+	} catch (StackOverflowError error) {
+	    throw Interpreter.stackOverflow(expr.paren);
+	}
+    }
+
+    static LoxFunction method(Object object, Expr.Get get) {
+	if (object instanceof LoxInstance) {
+	    return get.cache.method((LoxInstance)object, get.name);
+	}
+	throw new RuntimeError(get.name, "Only instance have properties.");
+    }
+
+    static Object field(Object object, LoxFunction method, Expr.Get get) {
+	if (method != null) return null;
+	return get.cache.get((LoxInstance)object, get.name);
+    }
+
+    static Object invoke(Object object, LoxFunction method, Object field,
+			 Object a, Object b, Object c, Object[] rest,
+			 Interpreter interpreter, Expr.Call expr) {
+	int count = expr.arguments.size();
+	try {
+	    if (method == null) {
+		return interpreter.call(field, null, count, a, b, c, rest, expr);
+	    }
+	    return interpreter.call(method, (LoxInstance)object, count,
+				    a, b, c, rest, expr);
+	} catch (StackOverflowError error) {
+	    throw Interpreter.stackOverflow(expr.paren);
+	}
+    }
+
+    static Object get(Object object, Expr.Get expr) {
+	if (object instanceof LoxInstance) {
+	    return expr.cache.get((LoxInstance)object, expr.name);
+	}
+	throw new RuntimeError(expr.name, "Only instance have properties.");
+    }
+
+    static Object checkFields(Object object, Token name) {
+	if (!(object instanceof LoxInstance)) {
+	    throw new RuntimeError(name, "Only instances have fields.");
+	}
+	return object;
+    }
+
+    static Object set(Object object, Object value, Expr.Set expr) {
+	expr.cache.set((LoxInstance)object, expr.name, value);
+	return value;
+    }
+
+    static void print(Object value) {
+	System.out.println(Interpreter.stringify(value));
+    }
+}
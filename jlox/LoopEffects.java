@@ -0,0 +1,268 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// What running one loop's condition, body and increment can change, so
+// the Optimizer knows which expressions give the same value every
+// iteration. It's deliberately coarse:
+// - A local in the frame is variant if the loop assigns or declares
+//   its slot. Nothing else can reach it, since it isn't captured.
+// - Captured locals and globals are tracked by name, and any call in
+//   the loop could change all of them.
+// - A property is variant if the loop sets a property of that name or
+//   makes any call.
+// Functions declared in the loop don't count until they're called, and
+// then the call already counts.
+class LoopEffects implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // The loop around this one in the same function, or null.
+    final LoopEffects enclosing;
+    // Frame slots of the expressions hoisted out of this loop, which
+    // have to be cleared whenever the loop starts.
+    final List<Integer> hoisted = new ArrayList<>();
+
+    private final Set<Integer> assignedSlots = new HashSet<>();
+    private final Set<String> assignedNames = new HashSet<>();
+    private final Set<String> setProperties = new HashSet<>();
+    private boolean hasCalls = false;
+
+    LoopEffects(LoopEffects enclosing, Expr condition, Expr increment,
+		Stmt body) {
+	this.enclosing = enclosing;
+	if (condition != null) scan(condition);
+	if (increment != null) scan(increment);
+	scan(body);
+    }
+
+    int[] hoistedSlots() {
+	int[] slots = new int[hoisted.size()];
+	for (int i = 0; i < slots.length; i ++) {
+	    slots[i] = hoisted.get(i);
+	}
+	return slots;
+    }
+
+    // Whether the expression has no side effects and evaluates to the
+    // same value in every iteration of this loop.
+    boolean isInvariant(Expr expr) {
+	if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+	    return true;
+	}
+	if (expr instanceof Expr.Variable) {
+	    Expr.Variable variable = (Expr.Variable)expr;
+	    if (variable.depth == Resolver.FRAME) {
+		return !assignedSlots.contains(variable.slot);
+	    }
+	    return !hasCalls && !assignedNames.contains(variable.name.lexeme);
+	}
+	if (expr instanceof Expr.Get) {
+	    Expr.Get get = (Expr.Get)expr;
+	    return !hasCalls && !setProperties.contains(get.name.lexeme) &&
+		isInvariant(get.object);
+	}
+	if (expr instanceof Expr.Grouping) {
+	    return isInvariant(((Expr.Grouping)expr).expression);
+	}
+	if (expr instanceof Expr.Unary) {
+	    return isInvariant(((Expr.Unary)expr).right);
+	}
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary)expr;
+	    return isInvariant(binary.left) && isInvariant(binary.right);
+	}
+	if (expr instanceof Expr.Logical) {
+	    Expr.Logical logical = (Expr.Logical)expr;
+	    return isInvariant(logical.left) && isInvariant(logical.right);
+	}
+	if (expr instanceof Expr.Invariant) {
+	    return isInvariant(((Expr.Invariant)expr).expression);
+	}
+	return false;
+    }
+
+    private void scan(Stmt stmt) {
+	stmt.accept(this);
+    }
+
+    private void scan(Expr expr) {
+	expr.accept(this);
+    }
+
+    private void declared(int slot, Token name) {
+	if (slot != -1) {
+	    assignedSlots.add(slot);
+	} else {
+	    assignedNames.add(name.lexeme);
+	}
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+	for (Stmt statement : stmt.statements) {
+	    scan(statement);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+	declared(stmt.slot, stmt.name);
+	if (stmt.superclass != null) scan(stmt.superclass);
+	return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+	scan(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+	if (stmt.initializer != null) scan(stmt.initializer);
+	if (stmt.condition != null) scan(stmt.condition);
+	if (stmt.increment != null) scan(stmt.increment);
+	scan(stmt.body);
+	return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+	declared(stmt.slot, stmt.name);
+	return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+	scan(stmt.condition);
+	scan(stmt.thenBranch);
+	if (stmt.elseBranch != null) scan(stmt.elseBranch);
+	return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+	scan(stmt.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.value != null) scan(stmt.value);
+	return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+	declared(stmt.slot, stmt.name);
+	if (stmt.initializer != null) scan(stmt.initializer);
+	return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+	scan(stmt.condition);
+	scan(stmt.body);
+	return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+	if (expr.depth == Resolver.FRAME) {
+	    assignedSlots.add(expr.slot);
+	} else {
+	    assignedNames.add(expr.name.lexeme);
+	}
+	scan(expr.value);
+	return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+	scan(expr.left);
+	scan(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+	hasCalls = true;
+	scan(expr.callee);
+	for (Expr argument : expr.arguments) {
+	    scan(argument);
+	}
+	return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+	scan(expr.object);
+	return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+	scan(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined expr) {
+	// It makes the call when the guard fails.
+	scan(expr.call);
+	for (int i = 0; i < expr.function.frameSize; i ++) {
+	    assignedSlots.add(expr.slot + i);
+	}
+	scan(expr.body);
+	return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+	scan(expr.expression);
+	return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+	return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+	scan(expr.left);
+	scan(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+	setProperties.add(expr.name.lexeme);
+	scan(expr.object);
+	scan(expr.value);
+	return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+	return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+	return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+	scan(expr.right);
+	return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+	return null;
+    }
+}
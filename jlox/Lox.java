@@ -3,32 +3,104 @@ package com.craftinginterpreters.jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM(interpreter);
+    // Run on the bytecode VM instead of walking the tree.
+    private static boolean useVm = false;
+    // Print the tree the optimizer leaves behind before running it.
+    private static boolean dumpAst = false;
+    // Run the tree as parsed, without folding, pruning or inlining.
+    private static boolean optimize = true;
+    // Scan files in parallel chunks instead of as they're parsed.
+    private static boolean parallelScan = false;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     
     public static void main(String[] args) throws IOException {
-	if (args.length > 1) {
-	    System.out.println("Usage: jlox [script]");
-	    System.exit(64);
-	} else if (args.length == 1) {
-	    runFile(args[0]);
+	int first = 0;
+	while (first < args.length && args[first].startsWith("--")) {
+	    String option = args[first++];
+	    if (option.equals("--engine=vm")) {
+		useVm = true;
+	    } else if (option.equals("--engine=ast")) {
+		useVm = false;
+	    } else if (option.equals("--specialize")) {
+		BinaryNode.enabled = true;
+	    } else if (option.equals("--jit")) {
+		Jit.enabled = true;
+	    } else if (option.startsWith("--jit-threshold=")) {
+		Jit.enabled = true;
+		Jit.threshold = intOption(option);
+	    } else if (option.startsWith("--max-depth=")) {
+		VM.maxDepth = intOption(option);
+	    } else if (option.startsWith("--inline-budget=")) {
+		Inliner.budget = intOption(option);
+	    } else if (option.equals("--parallel-scan")) {
+		parallelScan = true;
+	    } else if (option.startsWith("--scan-chunk=")) {
+		parallelScan = true;
+		ParallelScanner.chunkSize = intOption(option);
+	    } else if (option.equals("--no-optimize")) {
+		optimize = false;
+	    } else if (option.equals("--dump-ast")) {
+		dumpAst = true;
+	    } else if (option.equals("--ic-stats")) {
+		// A hook, so the numbers show up even when we exit with an error.
+		Runtime.getRuntime().addShutdownHook(
+		    new Thread(InlineCache::dumpStats));
+	    } else {
+		usage();
+	    }
+	}
+
+	if (args.length - first > 1) {
+	    usage();
+	} else if (args.length - first == 1) {
+	    runFile(args[first]);
 	} else {
 	    runPrompt();
 	}
     }
+
+    private static void usage() {
+	System.out.println("Usage: jlox [--engine=ast|vm] [--max-depth=N]" +
+			   " [--specialize] [--jit] [--jit-threshold=N]" +
+			   " [--inline-budget=N] [--no-optimize]" +
+			   " [--ic-stats] [--dump-ast]" +
+			   " [--parallel-scan] [--scan-chunk=N]" +
+			   " [script]");
+	System.exit(64);
+    }
+
+    // Parses the number after the '=' in an option like --jit-threshold=N.
+    private static int intOption(String option) {
+	try {
+	    return Integer.parseInt(option.substring(option.indexOf('=') + 1));
+	} catch (NumberFormatException error) {
+	    usage();
+	    return 0;
+	}
+    }
     
     // This interpreter supports two ways of running code.
     // Start jlox from the command line and give it path to file.
+    // The file is mapped rather than read, and scanned as it's parsed,
+    // so neither its text nor its tokens pile up on the heap.
     private static void runFile(String path) throws IOException {
-	byte[] bytes = Files.readAllBytes(Paths.get(path));
-	run(new String(bytes, Charset.defaultCharset()));
+	ByteBuffer source;
+	try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+	    source = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				 channel.size());
+	}
+	run(parallelScan ? new ParallelScanner(source) : new Scanner(source),
+	    source);
 	// Indicate an error in the exit code.
 	if (hadError) System.exit(65);
 	if (hadRuntimeError) System.exit(70);
@@ -45,26 +117,39 @@ public class Lox {
 	    String line = reader.readLine();
 	    // When readLine() returns null, exit the loop
 	    if (line == null) break;
-	    run(line);
+	    ByteBuffer source =
+		ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+	    run(new Scanner(source), source);
 	    // reset hadErroe, if users make a mistake, it should't kill entire session
 	    hadError = false;
 	}
     }
 
     // The runPrompt() and the runFile() are wrappered from this core function.
-    private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-	List<Token> tokens = scanner.scanTokens();
-	Parser parser = new Parser(tokens);
+    private static void run(TokenStream scanner, ByteBuffer source) {
+	Parser parser = new Parser(scanner, new TokenBuffer(source));
 	List<Stmt> statements = parser.parse();
 
 	// Stop if ther was syntax error/
 	if (hadError) return;
 	Resolver resolver = new Resolver(interpreter);
-	resolver.resolve(statements);
+	int frameSize = resolver.resolveScript(statements);
 	// Stop if there was a resolution error.
 	if (hadError) return;
-	interpreter.interpret(statements);
+	if (optimize) {
+	    frameSize = new Optimizer().optimizeScript(statements, frameSize);
+	}
+	if (dumpAst) {
+	    AstPrinter printer = new AstPrinter();
+	    for (Stmt statement : statements) {
+		System.err.println(printer.print(statement));
+	    }
+	}
+	if (useVm) {
+	    vm.interpret(statements, frameSize);
+	} else {
+	    interpreter.interpret(statements, frameSize);
+	}
     }
     // error() and report() helper tells the user some syntax error occurred on a given line.
     static void error(int line, String message)  {
@@ -1,8 +1,27 @@
 package com.craftinginterpreters.jlox;
 
-import java.util.List;
-
+// Calls go through the entry point for their number of arguments, so a
+// call with up to three of them doesn't have to put them in an array or
+// list first. The array one takes any number. Callables only have to
+// implement that one, the others fall back to it.
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+	return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+	return call(interpreter, new Object[] { a });
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+	return call(interpreter, new Object[] { a, b });
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b,
+			 Object c) {
+	return call(interpreter, new Object[] { a, b, c });
+    }
 }
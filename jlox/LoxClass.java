@@ -1,29 +1,35 @@
 package com.craftinginterpreters.jlox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
+    // Every method the class responds to, inherited ones included,
+    // so a lookup never has to walk up the superclass chain.
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
+    private final int arity;
+    // Where every instance's field layout starts out.
+    final Shape rootShape = new Shape();
 
     LoxClass(String name, LoxClass superclass,
 	     Map<String, LoxFunction> methods) {
 	this.superclass = superclass;
 	this.name = name;
-	this.methods = methods;
+	if (superclass != null) {
+	    this.methods = new HashMap<>(superclass.methods);
+	    this.methods.putAll(methods);
+	} else {
+	    this.methods = methods;
+	}
+	this.initializer = this.methods.get("init");
+	this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     LoxFunction findMethod(String name) {
-	if (methods.containsKey(name)) {
-	    return methods.get(name);
-	}
-	if (superclass != null) {
-	    return superclass.findMethod(name);
-	}
-	
-	return null;
+	return methods.get(name);
     }
 
     @Override
@@ -32,19 +38,48 @@ class LoxClass implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call0(Interpreter interpreter) {
+	return construct(interpreter, null, null, null, null);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+	return construct(interpreter, a, null, null, null);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+	return construct(interpreter, a, b, null, null);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b,
+			Object c) {
+	return construct(interpreter, a, b, c, null);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+	LoxInstance instance = new LoxInstance(this);
+	if (initializer != null) {
+	    initializer.callMethod(interpreter, instance, arguments);
+	}
+	return instance;
+    }
+
+    // The arguments are passed the way LoxFunction.callMethod() takes
+    // them.
+    private Object construct(Interpreter interpreter, Object a, Object b,
+			     Object c, Object[] rest) {
 	LoxInstance instance = new LoxInstance(this);
-	LoxFunction initializer = findMethod("init");
 	if (initializer != null) {
-	    initializer.bind(instance).call(interpreter, arguments);
+	    initializer.callMethod(interpreter, instance, a, b, c, rest);
 	}
 	return instance;
     }
 
     @Override
     public int arity() {
-	LoxFunction initializer = findMethod("init");
-	if (initializer == null) return 0;
-	return initializer.arity();
+	return arity;
     }
 }
@@ -1,8 +1,7 @@
 package com.craftinginterpreters.jlox;
-import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
 
     private final boolean isInitializer;
@@ -15,9 +14,15 @@ class LoxFunction implements LoxCallable {
     }
 
     LoxFunction bind(LoxInstance instance) {
-	Environment environment = new Environment(closure);
-	environment.define("this", instance);
-	return new LoxFunction(declaration, environment, isInitializer);
+	return new LoxFunction(declaration, receiverScope(instance),
+			       isInitializer);
+    }
+
+    // The scope holding "this" that a method's body sits in.
+    private Environment receiverScope(LoxInstance receiver) {
+	Environment environment = new Environment(closure, 1);
+	environment.define("this", receiver);
+	return environment;
     }
 
     @Override
@@ -31,27 +36,94 @@ class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-		       List<Object> arguments) {
-	// use close to holds on to the surrouding variables.
-	Environment environment = new Environment(closure);
-	
-	// A function encapsulate its parameters;
-	// Each function gets its own environment where it stores those variables;
-	for (int i = 0; i < declaration.params.size(); i ++) {
-	    environment.define(declaration.params.get(i).lexeme,
-			       arguments.get(i));
+    public Object call0(Interpreter interpreter) {
+	return callMethod(interpreter, null, null, null, null, null);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+	return callMethod(interpreter, null, a, null, null, null);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+	return callMethod(interpreter, null, a, b, null, null);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b,
+			Object c) {
+	return callMethod(interpreter, null, a, b, c, null);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+	return callMethod(interpreter, null, arguments);
+    }
+
+    Object callMethod(Interpreter interpreter, LoxInstance receiver,
+		      Object[] arguments) {
+	int count = arguments.length;
+	if (count > 3) {
+	    return callMethod(interpreter, receiver, null, null, null, arguments);
+	}
+	return callMethod(interpreter, receiver,
+			  count > 0 ? arguments[0] : null,
+			  count > 1 ? arguments[1] : null,
+			  count > 2 ? arguments[2] : null, null);
+    }
+
+    // Runs this method on receiver as if it had been bound to it,
+    // without creating the bound LoxFunction. With no receiver, it's a
+    // plain call.
+    //
+    // Up to three arguments come in a, b and c. A call with more has
+    // all of them in rest instead, which is null otherwise.
+    //
+    // It's a trampoline: when the body ends by returning a call in tail
+    // position, the Interpreter hands that call back here and we make
+    // it in a loop, rather than nesting it in the current Java frames.
+    Object callMethod(Interpreter interpreter, LoxInstance receiver,
+		      Object a, Object b, Object c, Object[] rest) {
+	LoxFunction function = this;
+	for (;;) {
+	    Environment closure = receiver == null ? function.closure
+						   : function.receiverScope(receiver);
+	    Object value = function.execute(interpreter, closure, a, b, c, rest);
+	    if (interpreter.tailFunction == null) return value;
+
+	    function = interpreter.tailFunction;
+	    receiver = interpreter.tailReceiver;
+	    a = interpreter.tailA;
+	    b = interpreter.tailB;
+	    c = interpreter.tailC;
+	    rest = interpreter.tailRest;
+	    interpreter.tailFunction = null;
+	    interpreter.tailReceiver = null;
+	    interpreter.tailA = null;
+	    interpreter.tailB = null;
+	    interpreter.tailC = null;
+	    interpreter.tailRest = null;
 	}
+    }
 
-	// interpreter.executeBlock(declaration.body, environment);
-	try {
-	    interpreter.executeBlock(declaration.body, environment);
-	} catch (Return returnValue) {
-	    if (isInitializer) return closure.getAt(0, "this");
-	    return returnValue.value;
+    private Object execute(Interpreter interpreter, Environment closure,
+			   Object a, Object b, Object c, Object[] rest) {
+	// Hot functions run as JVM bytecode once the Jit has compiled them.
+	if (Jit.enabled && !isInitializer) {
+	    Jit.Code compiled = Jit.compiled(declaration);
+	    if (compiled != null) return compiled.invoke(interpreter, a, b, c, rest);
 	}
-	if (isInitializer) return closure.getAt(0, "this");
-	return null;
+
+	// use close to holds on to the surrouding variables.
+	// Only a function whose locals get captured needs its own scope.
+	Environment environment = closure;
+	if (declaration.hasEnvironment) environment = new Environment(closure);
+
+	interpreter.executeCall(declaration, environment, a, b, c, rest);
+	Object value = interpreter.finishCall();
+	if (isInitializer) return closure.getAt(0, 0);
+	return value;
     }
 }
 
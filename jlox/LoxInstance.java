@@ -1,32 +1,41 @@
 package com.craftinginterpreters.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    // Field names live in the shared shape, only the values are per instance.
+    Shape shape;
+    private Object[] fields = NO_FIELDS;
 
     LoxInstance(LoxClass klass) {
 	this.klass = klass;
+	this.shape = klass.rootShape;
     }
 
-    Object get(Token name) {
-	if (fields.containsKey(name.lexeme)) {
-	    return fields.get(name.lexeme);
+    // Moves to next, a shape with one field more than the current one,
+    // and stores that new field.
+    void addField(Shape next, Object value) {
+	int offset = next.size - 1;
+	if (offset == fields.length) {
+	    fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
 	}
+	fields[offset] = value;
+	shape = next;
+    }
 
-	LoxFunction method = klass.findMethod(name.lexeme);
-	if (method != null) return method.bind(this);
-
-	throw new RuntimeError(name,
-			       "Undefined property '" + name.lexeme + ".");
+    // Direct access for callers that already know the field's offset
+    // in this instance's shape.
+    Object getField(int offset) {
+	return fields[offset];
     }
 
-    void set(Token name, Object value) {
-	fields.put(name.lexeme, value);
+    void setField(int offset, Object value) {
+	fields[offset] = value;
     }
-    
+
     @Override
     public String toString() {
 	return klass.name + " instance";
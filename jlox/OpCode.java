@@ -0,0 +1,64 @@
+package com.craftinginterpreters.jlox;
+
+// The instruction set of the bytecode VM.
+// Operands follow the opcode in the chunk, u16 operands are big endian.
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT      = 0;  // u16 constant
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+
+    // Captured locals live in Environments, addressed by the Resolver's
+    // (depth, slot). The rest live in the frame, on the VM's stack.
+    static final byte GET_LOCAL     = 5;  // u16 depth, u16 slot
+    static final byte SET_LOCAL     = 6;  // u16 depth, u16 slot
+    static final byte GET_GLOBAL    = 7;  // u16 global slot
+    static final byte SET_GLOBAL    = 8;  // u16 global slot
+    static final byte DEFINE        = 9;  // u16 name
+    static final byte PUSH_SCOPE    = 10;
+    static final byte POP_SCOPE     = 11;
+    static final byte GET_FRAME     = 12; // u16 slot
+    static final byte SET_FRAME     = 13; // u16 slot
+
+    static final byte GET_PROPERTY  = 14; // u16 name token
+    static final byte SET_PROPERTY  = 15; // u16 name token
+    static final byte CHECK_FIELDS  = 16; // u16 name token
+    static final byte GET_SUPER     = 17; // u16 depth, u16 name token
+
+    static final byte EQUAL         = 18;
+    static final byte GREATER       = 19;
+    static final byte GREATER_EQUAL = 20;
+    static final byte LESS          = 21;
+    static final byte LESS_EQUAL    = 22;
+    static final byte ADD           = 23;
+    static final byte SUBTRACT      = 24;
+    static final byte MULTIPLY      = 25;
+    static final byte DIVIDE        = 26;
+    static final byte NOT           = 27;
+    static final byte NEGATE        = 28;
+
+    static final byte PRINT         = 29;
+    static final byte JUMP          = 30; // u16 offset
+    static final byte JUMP_IF_FALSE = 31; // u16 offset
+    static final byte LOOP          = 32; // u16 offset
+    static final byte CALL          = 33; // u8 argument count
+    static final byte CLOSURE       = 34; // u16 function constant
+    static final byte RETURN        = 35;
+
+    static final byte CLASS         = 36; // u16 name, u8 has superclass
+    static final byte INHERIT       = 37;
+    static final byte METHOD        = 38; // u16 name
+
+    // Reads a loop invariant's cached value: jumps over the code that
+    // computes it unless the frame slot on top of the stack is still
+    // empty, in which case the nil is popped.
+    static final byte JUMP_IF_CACHED = 39; // u16 offset
+
+    // Guards an inlined call: pops the callee on top of the stack and
+    // runs the inlined body that follows if the callee is the function
+    // declaration, or else jumps to the code making the call.
+    static final byte CHECK_INLINED = 40; // u16 declaration, u16 offset
+}
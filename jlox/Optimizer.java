@@ -0,0 +1,510 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Folds constant expressions and prunes dead branches after resolution.
+// Child fields of the AST are final, so a node whose children changed is
+// rebuilt, and the annotations the Resolver left on it are copied over.
+// Nodes that didn't change are returned as they are, and lists of
+// statements and arguments are updated in place.
+//
+// Nothing is folded that could fail at runtime. An expression like
+// "a" - 1 is left alone so it still reports its error when it runs.
+//
+// Arithmetic that gives the same value in every iteration of a loop is
+// hoisted out of it. It can't simply move in front of the loop, where it
+// might fail or run when the loop never reaches it. Instead it gets a
+// frame slot which the loop clears when it starts, and is computed where
+// it stands the first time around and read from the slot after that.
+//
+// Calls to small functions the Resolver saw bound once are replaced by
+// a copy of the function's body, see Inliner. The copy is guarded: if
+// the name holds some other value by the time the call runs, it's
+// called normally instead.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The function we're in, or null for the script.
+    private Stmt.Function function = null;
+    private int scriptFrameSize;
+    // The innermost loop in the current function, or null.
+    private LoopEffects loop = null;
+
+    // Functions calls may be inlined from: the script's global functions
+    // by name, and the current function's local ones by frame slot.
+    private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+    private Map<Integer, Stmt.Function> localFunctions = new HashMap<>();
+    // The functions we're in the middle of, which can't be inlined.
+    private final Set<Stmt.Function> inlining = new HashSet<>();
+    private int inlineBudget = Inliner.budget;
+
+    // Returns the script's frame size, which grows by the slots hoisted
+    // and inlined code at the top level needs.
+    int optimizeScript(List<Stmt> statements, int frameSize) {
+	scriptFrameSize = frameSize;
+	for (Stmt statement : statements) {
+	    if (statement instanceof Stmt.Function) {
+		Stmt.Function function = (Stmt.Function)statement;
+		if (!function.reassigned) {
+		    globalFunctions.put(function.name.lexeme, function);
+		}
+	    }
+	}
+	optimize(statements);
+	return scriptFrameSize;
+    }
+
+    private void optimize(List<Stmt> statements) {
+	for (int i = 0; i < statements.size(); i ++) {
+	    Stmt statement = optimize(statements.get(i));
+	    if (isEmpty(statement)) {
+		statements.remove(i --);
+	    } else {
+		statements.set(i, statement);
+	    }
+	}
+    }
+
+    private Stmt optimize(Stmt stmt) {
+	return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+	if (loop != null &&
+	    (expr instanceof Expr.Binary || expr instanceof Expr.Unary)) {
+	    // Hoist out of the outermost loop we can.
+	    LoopEffects target = null;
+	    for (LoopEffects enclosing = loop; enclosing != null;
+		 enclosing = enclosing.enclosing) {
+		if (!enclosing.isInvariant(expr)) break;
+		target = enclosing;
+	    }
+	    if (target != null) return hoist(expr, target);
+	}
+	return expr.accept(this);
+    }
+
+    private Expr hoist(Expr expr, LoopEffects target) {
+	LoopEffects enclosing = loop;
+	loop = null;
+	Expr folded = expr.accept(this);
+	loop = enclosing;
+
+	// Binary and unary operators produce numbers, strings or Booleans,
+	// never nil, so an empty slot means it hasn't been computed.
+	if (!(folded instanceof Expr.Binary || folded instanceof Expr.Unary)) {
+	    return folded;
+	}
+	int slot = allocate(1);
+	target.hoisted.add(slot);
+	return new Expr.Invariant(folded, slot);
+    }
+
+    // Reserves slots in the frame of the function we're in.
+    private int allocate(int slots) {
+	int first;
+	if (function != null) {
+	    first = function.frameSize;
+	    function.frameSize += slots;
+	} else {
+	    first = scriptFrameSize;
+	    scriptFrameSize += slots;
+	}
+	return first;
+    }
+
+    // Returns the inlined call, or null if the callee isn't a function we
+    // know or doesn't fit in the budget.
+    private Expr inline(Expr.Call call, Expr.Variable callee) {
+	Stmt.Function target = null;
+	if (callee.depth == -1) {
+	    target = globalFunctions.get(callee.name.lexeme);
+	} else if (callee.depth == Resolver.FRAME) {
+	    target = localFunctions.get(callee.slot);
+	}
+	// A wrong number of arguments is left for the call to report.
+	if (target == null || inlining.contains(target) ||
+	    target.params.size() != call.arguments.size()) {
+	    return null;
+	}
+
+	Expr body = Inliner.body(target);
+	if (body == null) return null;
+	int size = Inliner.size(body, target);
+	if (size == -1 || size > inlineBudget) return null;
+
+	// The copy gets its own slots for everything in the callee's frame.
+	int slot = allocate(target.frameSize);
+	Expr copy = Inliner.copy(body, slot);
+
+	// Fold the copy and inline the calls in it with what's left of the
+	// budget. Nothing in it is hoisted, because the loops' effects don't
+	// include the parameter slots being set on every call.
+	LoopEffects enclosingLoop = loop;
+	int enclosingBudget = inlineBudget;
+	loop = null;
+	inlineBudget -= size;
+	inlining.add(target);
+	copy = optimize(copy);
+	inlining.remove(target);
+	inlineBudget = enclosingBudget;
+	loop = enclosingLoop;
+
+	return new Expr.Inlined(call, target, copy, slot);
+    }
+
+    // What a pruned statement turns into. It has no locals, so it doesn't
+    // need an environment, and lists drop it altogether.
+    private static Stmt empty() {
+	return new Stmt.Block(new ArrayList<>());
+    }
+
+    private static boolean isEmpty(Stmt stmt) {
+	return stmt instanceof Stmt.Block &&
+	    ((Stmt.Block)stmt).statements.isEmpty();
+    }
+
+    private static boolean isLiteral(Expr expr) {
+	return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+	return ((Expr.Literal)expr).value;
+    }
+
+    // Compares bits rather than with ==, so -0 doesn't count as 0:
+    // x - -0 turns -0 into 0, where x - 0 leaves every number alone.
+    private static boolean isNumber(Expr expr, double number) {
+	return isLiteral(expr) && value(expr) instanceof Double &&
+	    Double.doubleToRawLongBits((double)value(expr)) ==
+	    Double.doubleToRawLongBits(number);
+    }
+
+    // Whether the expression either produces a number or fails, so that
+    // dropping an arithmetic identity around it can't hide an error.
+    private static boolean isNumeric(Expr expr) {
+	if (isLiteral(expr)) return value(expr) instanceof Double;
+	if (expr instanceof Expr.Unary) {
+	    return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+	}
+	if (expr instanceof Expr.Binary) {
+	    Expr.Binary binary = (Expr.Binary)expr;
+	    switch (binary.operator.type) {
+	    case MINUS:
+	    case STAR:
+	    case SLASH:
+		return true;
+	    case PLUS:
+		return isNumeric(binary.left) || isNumeric(binary.right);
+	    default:
+		return false;
+	    }
+	}
+	return false;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+	optimize(stmt.statements);
+	return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+	for (Stmt.Function method : stmt.methods) {
+	    visitFunctionStmt(method);
+	}
+	return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+	Expr expression = optimize(stmt.expression);
+	// A constant on its own does nothing.
+	if (isLiteral(expression)) return empty();
+	if (expression == stmt.expression) return stmt;
+	return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+	Stmt initializer = stmt.initializer == null ?
+	    null : optimize(stmt.initializer);
+
+	LoopEffects enclosing = loop;
+	loop = new LoopEffects(enclosing, stmt.condition, stmt.increment,
+			       stmt.body);
+	Expr condition = stmt.condition == null ?
+	    null : optimize(stmt.condition);
+	Expr increment = stmt.increment == null ?
+	    null : optimize(stmt.increment);
+	Stmt body = optimize(stmt.body);
+	int[] invariants = loop.hoistedSlots();
+	loop = enclosing;
+
+	// A condition that's always true is the same as none at all.
+	if (condition != null && isLiteral(condition) &&
+	    Interpreter.isTruthy(value(condition))) {
+	    condition = null;
+	}
+	if (increment != null && isLiteral(increment)) increment = null;
+
+	if (initializer == stmt.initializer && condition == stmt.condition &&
+	    increment == stmt.increment && body == stmt.body) {
+	    stmt.invariants = invariants;
+	    return stmt;
+	}
+	Stmt.For result = new Stmt.For(initializer, condition, increment, body);
+	result.hasEnvironment = stmt.hasEnvironment;
+	result.invariants = invariants;
+	return result;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+	if (stmt.slot != -1 && !stmt.reassigned) {
+	    localFunctions.put(stmt.slot, stmt);
+	}
+
+	Stmt.Function enclosingFunction = function;
+	LoopEffects enclosingLoop = loop;
+	Map<Integer, Stmt.Function> enclosingFunctions = localFunctions;
+	function = stmt;
+	loop = null;
+	localFunctions = new HashMap<>();
+	inlining.add(stmt);
+	optimize(stmt.body);
+	inlining.remove(stmt);
+	function = enclosingFunction;
+	loop = enclosingLoop;
+	localFunctions = enclosingFunctions;
+	return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+	Expr condition = optimize(stmt.condition);
+	Stmt thenBranch = optimize(stmt.thenBranch);
+	Stmt elseBranch = stmt.elseBranch == null ?
+	    null : optimize(stmt.elseBranch);
+
+	if (isLiteral(condition)) {
+	    if (Interpreter.isTruthy(value(condition))) return thenBranch;
+	    return elseBranch == null ? empty() : elseBranch;
+	}
+
+	if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+	    elseBranch == stmt.elseBranch) {
+	    return stmt;
+	}
+	return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+	Expr expression = optimize(stmt.expression);
+	if (expression == stmt.expression) return stmt;
+	return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+	if (stmt.value == null) return stmt;
+	Expr value = optimize(stmt.value);
+	if (value == stmt.value) return stmt;
+
+	// Folding can uncover a call in tail position, as in
+	// return (f(n));
+	if (value instanceof Expr.Call) ((Expr.Call)value).tail = true;
+	return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+	if (stmt.initializer == null) return stmt;
+	Expr initializer = optimize(stmt.initializer);
+	if (initializer == stmt.initializer) return stmt;
+
+	Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+	result.slot = stmt.slot;
+	return result;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+	LoopEffects enclosing = loop;
+	loop = new LoopEffects(enclosing, stmt.condition, null, stmt.body);
+	Expr condition = optimize(stmt.condition);
+	Stmt body = optimize(stmt.body);
+	int[] invariants = loop.hoistedSlots();
+	loop = enclosing;
+
+	if (isLiteral(condition) && !Interpreter.isTruthy(value(condition))) {
+	    return empty();
+	}
+	if (condition == stmt.condition && body == stmt.body) {
+	    stmt.invariants = invariants;
+	    return stmt;
+	}
+	Stmt.While result = new Stmt.While(condition, body);
+	result.invariants = invariants;
+	return result;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+	Expr value = optimize(expr.value);
+	if (value == expr.value) return expr;
+
+	Expr.Assign result = new Expr.Assign(expr.name, value);
+	result.depth = expr.depth;
+	result.slot = expr.slot;
+	return result;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+	Expr left = optimize(expr.left);
+	Expr right = optimize(expr.right);
+
+	if (isLiteral(left) && isLiteral(right)) {
+	    try {
+		return new Expr.Literal(
+		    Interpreter.binary(expr.operator, value(left), value(right)));
+	    } catch (RuntimeError error) {
+		// Leave it for the runtime to report.
+	    }
+	}
+
+	// Identities that hold for every number, -0 and NaN included.
+	switch (expr.operator.type) {
+	case MINUS:
+	    if (isNumber(right, 0) && isNumeric(left)) return left;
+	    break;
+	case STAR:
+	    if (isNumber(right, 1) && isNumeric(left)) return left;
+	    if (isNumber(left, 1) && isNumeric(right)) return right;
+	    break;
+	case SLASH:
+	    if (isNumber(right, 1) && isNumeric(left)) return left;
+	    break;
+	}
+
+	if (left == expr.left && right == expr.right) return expr;
+	return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+	Expr callee = optimize(expr.callee);
+	for (int i = 0; i < expr.arguments.size(); i ++) {
+	    expr.arguments.set(i, optimize(expr.arguments.get(i)));
+	}
+
+	Expr.Call result = expr;
+	if (callee != expr.callee) {
+	    result = new Expr.Call(callee, expr.paren, expr.arguments);
+	    result.tail = expr.tail;
+	}
+	if (callee instanceof Expr.Variable) {
+	    Expr inlined = inline(result, (Expr.Variable)callee);
+	    if (inlined != null) return inlined;
+	}
+	return result;
+    }
+
+    @Override
+    public Expr visitInlinedExpr(Expr.Inlined expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+	Expr object = optimize(expr.object);
+	if (object == expr.object) return expr;
+	return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+	// Parentheses only matter to the parser.
+	return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+	Expr left = optimize(expr.left);
+	Expr right = optimize(expr.right);
+
+	if (isLiteral(left)) {
+	    boolean truthy = Interpreter.isTruthy(value(left));
+	    if (expr.operator.type == TokenType.OR) {
+		return truthy ? left : right;
+	    }
+	    return truthy ? right : left;
+	}
+
+	if (left == expr.left && right == expr.right) return expr;
+	return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+	Expr object = optimize(expr.object);
+	Expr value = optimize(expr.value);
+	if (object == expr.object && value == expr.value) return expr;
+	return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+	return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+	Expr right = optimize(expr.right);
+
+	if (isLiteral(right)) {
+	    Object value = value(right);
+	    if (expr.operator.type == TokenType.BANG) {
+		return new Expr.Literal(!Interpreter.isTruthy(value));
+	    }
+	    if (value instanceof Double) return new Expr.Literal(-(double)value);
+	}
+
+	// -(-x) is x when x is a number, and fails the same way otherwise.
+	if (expr.operator.type == TokenType.MINUS &&
+	    right instanceof Expr.Unary &&
+	    ((Expr.Unary)right).operator.type == TokenType.MINUS &&
+	    isNumeric(((Expr.Unary)right).right)) {
+	    return ((Expr.Unary)right).right;
+	}
+
+	if (right == expr.right) return expr;
+	return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+	return expr;
+    }
+}
@@ -0,0 +1,116 @@
+package com.craftinginterpreters.jlox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// Scans the whole source at once, in chunks on the common ForkJoinPool,
+// for --parallel-scan. Unlike Scanner it hands the Parser every token
+// in one go, so they all sit in memory together.
+//
+// A chunk starts just past a newline that isn't in a string or a block
+// comment. The serial Scanner is between tokens there, with nothing
+// carried over but the line number, so a Scanner started there on that
+// line finds exactly the tokens the serial one would. A quick pre-pass
+// finds those newlines. It only stops at the bytes that open or close
+// strings and comments, and at newlines to count lines.
+class ParallelScanner implements TokenStream {
+    // Roughly how many bytes go in a chunk. A source smaller than this
+    // is scanned in one piece.
+    static int chunkSize = 1 << 20;
+
+    private final ByteBuffer source;
+    private final int length;
+    // Where each chunk starts, and on what line. The last one ends at
+    // the end of the source.
+    private final List<Integer> starts = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+
+    ParallelScanner(ByteBuffer source) {
+	this.source = source;
+	this.length = source.limit();
+    }
+
+    @Override
+    public void scanInto(TokenBuffer tokens) {
+	split();
+
+	int chunks = starts.size();
+	Scanner[] scanners = new Scanner[chunks];
+	TokenBuffer[] parts = IntStream.range(0, chunks).parallel()
+	    .mapToObj(i -> {
+		    int to = i + 1 < chunks ? starts.get(i + 1) : length;
+		    scanners[i] = new Scanner(source, starts.get(i), to,
+					      lines.get(i));
+		    return scanners[i].scanTokens();
+		})
+	    .toArray(TokenBuffer[]::new);
+
+	// Stitch them together in order, dropping every EOF but the last,
+	// and report their errors in the order the serial Scanner would.
+	Map<String, String> names = new HashMap<>();
+	for (int i = 0; i < chunks; i ++) {
+	    scanners[i].reportErrors();
+	    int count = parts[i].count;
+	    if (i + 1 < chunks) count --;
+	    tokens.append(parts[i], count, names);
+	}
+    }
+
+    // Records a chunk at each newline outside strings and block
+    // comments once the current one is at least chunkSize long. This
+    // follows the same rules as the Scanner for where they start and
+    // end, including nested block comments.
+    private void split() {
+	starts.add(0);
+	lines.add(1);
+	int line = 1;
+	int depth = 0;
+	boolean inString = false;
+	int i = 0;
+	for (;;) {
+	    if (inString) {
+		i = Scanner.find(source, i, length, '\n', '"', '"');
+	    } else if (depth > 0) {
+		i = Scanner.find(source, i, length, '\n', '*', '/');
+	    } else {
+		i = Scanner.find(source, i, length, '\n', '"', '/');
+	    }
+	    if (i == length) return;
+
+	    char c = charAt(i++);
+	    if (c == '\n') {
+		line ++;
+		if (!inString && depth == 0 && i < length &&
+		    i - starts.get(starts.size() - 1) >= chunkSize) {
+		    starts.add(i);
+		    lines.add(line);
+		}
+	    } else if (c == '"') {
+		inString = !inString;
+	    } else if (depth > 0) {
+		if (c == '*' && charAt(i) == '/') {
+		    depth --;
+		    i ++;
+		} else if (c == '/' && charAt(i) == '*') {
+		    depth ++;
+		    i ++;
+		}
+	    } else if (charAt(i) == '/') {
+		// A line comment, up to the newline that ends it.
+		i = Scanner.find(source, i + 1, length, '\n', '\n', '\n');
+	    } else if (charAt(i) == '*') {
+		depth = 1;
+		i ++;
+	    }
+	}
+    }
+
+    private char charAt(int index) {
+	if (index >= length) return '\0';
+	return (char)(source.get(index) & 0xff);
+    }
+}
@@ -1,7 +1,6 @@
 package com.craftinginterpreters.jlox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.jlox.TokenType.*;
@@ -9,11 +8,17 @@ import static com.craftinginterpreters.jlox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException {}
     
-    private final List<Token> tokens;
+    private final TokenStream stream;
+    private final TokenBuffer tokens;
+    // The index of the token we're looking at. The parser never looks
+    // further back than the one before it, so once it reaches the end
+    // of the buffer, the rest can be dropped and the next batch read.
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenStream stream, TokenBuffer tokens) {
+        this.stream = stream;
         this.tokens = tokens;
+        if (tokens.count == 0) stream.scanInto(tokens);
     }
 
     // This parses a series of statements,
@@ -104,21 +109,9 @@ class Parser {
 
 	// loop body
 	Stmt body = statement();
-	if (increment != null) {
-	    body = new Stmt.Block(
-		 Arrays.asList(body,
-			       new Stmt.Expression(increment)));
-	}
-
-	// If the condition is omitted, we jam in true to make an infinite loop.
-	if (condition == null) condition = new Expr.Literal(true);
-	body = new Stmt.While(condition, body);
 
-	// If there is an initializer, it runs once before the entire loop.
-	if (initializer != null) {
-	    body = new Stmt.Block(Arrays.asList(initializer, body));
-	}
-	return body;
+	// Any of the clauses can be null. A missing condition loops forever.
+	return new Stmt.For(initializer, condition, increment, body);
     }
     
     /*
@@ -282,7 +275,10 @@ class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+        if (check(type)) {
+            advance();
+            return previous();
+        }
 
         throw error(peek(), message);
     }
@@ -374,7 +370,7 @@ class Parser {
         if (match(NIL))   return new Expr.Literal(null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 	if (match(SUPER)) {
 	    Token keyword = previous();
@@ -400,24 +396,33 @@ class Parser {
     
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
+    }
+
+    private void advance() {
+        if (isAtEnd()) return;
+        current ++;
+        if (current == tokens.count) refill();
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current ++;
-        return previous();
+    private void refill() {
+        tokens.keepLast();
+        current = 1;
+        stream.scanInto(tokens);
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
+    // These make Token objects, so use them for tokens that end up in
+    // the tree or in an error message.
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private ParseError error(Token token, String message) {
@@ -429,9 +434,9 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -1,14 +1,29 @@
 package com.craftinginterpreters.jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.function.IntConsumer;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // The depth of a local that lives in its function's frame rather
+    // than in an Environment. Its slot is then an index into the frame.
+    static final int FRAME = -2;
+
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // The innermost scope, or null at the top level.
+    private Scope scope = null;
+    // The function we're in, or the script at the top level.
+    private Frame frame = null;
     private FunctionType currentFunction = FunctionType.NONE;
+    // For marking functions whose name gets bound to something else,
+    // which the Optimizer won't inline.
+    private final List<Stmt.Function> globalFunctions = new ArrayList<>();
+    private final Set<String> declaredGlobals = new HashSet<>();
+    private final Set<String> reboundGlobals = new HashSet<>();
 
     Resolver(Interpreter interpreter) {
 	this.interpreter = interpreter;
@@ -21,6 +36,48 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	METHOD,
     }
 
+    // Every local gets a slot in the frame of the function declaring it,
+    // numbered in declaration order, so parameters come first. Locals an
+    // inner function captures have to outlive the call, and move into an
+    // Environment for their scope instead. Whether that happens is only
+    // known once the scope ends, so uses are bound to their slots then.
+    private static class Frame {
+	int size = 0;
+    }
+
+    private static class Scope {
+	final Scope enclosing;
+	final Frame frame;
+	final Map<String, Local> locals = new HashMap<>();
+	final List<Local> order = new ArrayList<>();
+	boolean hasEnvironment = false;
+
+	Scope(Scope enclosing, Frame frame) {
+	    this.enclosing = enclosing;
+	    this.frame = frame;
+	}
+    }
+
+    private static class Local {
+	final int frameSlot;
+	// Tells the declaration where to store the value: its frame slot,
+	// or -1 to define it in the scope's environment.
+	final IntConsumer placement;
+	final List<Expr> uses = new ArrayList<>();
+	final List<Scope> useScopes = new ArrayList<>();
+	// Whether its initializer has finished.
+	boolean defined;
+	boolean captured = false;
+	// The declaration, if this is a function.
+	Stmt.Function function = null;
+
+	Local(int frameSlot, IntConsumer placement, boolean defined) {
+	    this.frameSlot = frameSlot;
+	    this.placement = placement;
+	    this.defined = defined;
+	}
+    }
+
     private enum ClassType {
 	NONE,
 	CLASS,
@@ -34,7 +91,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
 	beginScope();
 	resolve(stmt.statements);
-	endScope();
+	stmt.hasEnvironment = endScope();
 	return null;
     }
 
@@ -43,7 +100,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	ClassType enclosingClass = currentClass;
 	currentClass = ClassType.CLASS;
 	
-	declare(stmt.name);
+	declare(stmt.name, slot -> stmt.slot = slot);
 	define(stmt.name);
 	
 	// inherit-self
@@ -68,10 +125,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	*/
 	if (stmt.superclass != null) {
 	    beginScope();
-	    scopes.peek().put("super", true);
+	    declareImplicit("super");
 	}
 	beginScope();
-	scopes.peek().put("this", true);
+	declareImplicit("this");
 	for (Stmt.Function method : stmt.methods) {
 	    FunctionType declaration = FunctionType.METHOD;
 	    if (method.name.lexeme.equals("init")) {
@@ -93,8 +150,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-	declare(stmt.name);
+	declare(stmt.name, slot -> stmt.slot = slot);
 	define(stmt.name);
+	if (scope != null) {
+	    scope.locals.get(stmt.name.lexeme).function = stmt;
+	} else {
+	    globalFunctions.add(stmt);
+	}
 
 	resolveFunction(stmt, FunctionType.FUNCTION);
 	return null;
@@ -123,12 +185,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		Lox.error(stmt.keyword,
 			  "Can't return a value from an initializer.");
 	    }
+	    // The interpreter leaves a call in tail position to the
+	    // function it returns from, see LoxFunction.callMethod().
+	    if (stmt.value instanceof Expr.Call) {
+		((Expr.Call)stmt.value).tail = true;
+	    }
 	    resolve(stmt.value);
 	}
 
 	return null;
     }
     
+    // The loop has its own scope for the initializer's variable. It only
+    // needs an Environment if the body captures that variable.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+	beginScope();
+	if (stmt.initializer != null) resolve(stmt.initializer);
+	if (stmt.condition != null) resolve(stmt.condition);
+	if (stmt.increment != null) resolve(stmt.increment);
+	resolve(stmt.body);
+	stmt.hasEnvironment = endScope();
+	return null;
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
 	resolve(stmt.condition);
@@ -138,7 +218,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-	declare(stmt.name);
+	declare(stmt.name, slot -> stmt.slot = slot);
 	if(stmt.initializer != null) {
 	    resolve(stmt.initializer);
 	}
@@ -183,6 +263,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	return null;
     }
 
+    // Only the Optimizer creates these, after resolution.
+    @Override
+    public Void visitInlinedExpr(Expr.Inlined expr) {
+	resolve(expr.call);
+	return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+	resolve(expr.expression);
+	return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
 	return null;
@@ -234,8 +327,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-	if (!scopes.isEmpty() &&
-	    scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+	if (scope != null &&
+	    scope.locals.containsKey(expr.name.lexeme) &&
+	    !scope.locals.get(expr.name.lexeme).defined) {
 	    Lox.error(expr.name,
 		      "Can't read local vatiable in its own initializer.");
 	}
@@ -254,54 +348,150 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
 	FunctionType enclosingFunction = currentFunction;
+	Frame enclosingFrame = frame;
 	currentFunction = type;
+	frame = new Frame();
 	beginScope();
-	for (Token param : function.params) {
-	    declare(param);
+	function.capturedParams = new boolean[function.params.size()];
+	for (int i = 0; i < function.params.size(); i ++) {
+	    int index = i;
+	    Token param = function.params.get(i);
+	    declare(param, slot -> function.capturedParams[index] = slot == -1);
 	    define(param);
 	}
 	resolve(function.body);
-	endScope();
+	function.hasEnvironment = endScope();
+	function.frameSize = frame.size;
+	frame = enclosingFrame;
 	currentFunction = enclosingFunction;
     }
 
-    void resolve(List<Stmt> statements) {
+    // Resolves a whole script, and returns how many frame slots the
+    // locals in its top-level blocks need.
+    int resolveScript(List<Stmt> statements) {
+	frame = new Frame();
+	resolve(statements);
+	for (Stmt.Function function : globalFunctions) {
+	    if (reboundGlobals.contains(function.name.lexeme)) {
+		function.reassigned = true;
+	    }
+	}
+	return frame.size;
+    }
+
+    private void resolve(List<Stmt> statements) {
 	for (Stmt statement : statements) {
 	    resolve(statement);
 	}
     }
 
     private void beginScope() {
-	scopes.push(new HashMap<String, Boolean>());
+	scope = new Scope(scope, frame);
     }
 
-    private void endScope() {
-	scopes.pop();
+    // Lays out the scope's locals and binds every use of them, now that
+    // all of those uses have been seen. Returns whether the scope needs
+    // an Environment at runtime.
+    private boolean endScope() {
+	Scope ending = scope;
+	for (Local local : ending.order) {
+	    if (local.captured) ending.hasEnvironment = true;
+	}
+
+	// Captured locals are defined in the environment in declaration
+	// order, which is the order they get their slots in here.
+	int environmentSlots = 0;
+	for (Local local : ending.order) {
+	    int slot = local.captured ? environmentSlots++ : local.frameSlot;
+	    if (local.placement != null) {
+		local.placement.accept(local.captured ? -1 : slot);
+	    }
+	    for (int i = 0; i < local.uses.size(); i ++) {
+		int depth = FRAME;
+		if (local.captured) {
+		    depth = 0;
+		    for (Scope inner = local.useScopes.get(i); inner != ending;
+			 inner = inner.enclosing) {
+			if (inner.hasEnvironment) depth ++;
+		    }
+		}
+		bind(local.uses.get(i), depth, slot);
+	    }
+	}
+
+	scope = ending.enclosing;
+	return ending.hasEnvironment;
     }
 
-    private void declare(Token name) {
-	if (scopes.isEmpty()) return;
+    private void declare(Token name, IntConsumer placement) {
+	if (scope == null) {
+	    if (!declaredGlobals.add(name.lexeme)) {
+		reboundGlobals.add(name.lexeme);
+	    }
+	    return;
+	}
 
-	Map<String, Boolean> scope = scopes.peek();
-	if (scope.containsKey(name.lexeme)) {
+	if (scope.locals.containsKey(name.lexeme)) {
 	    Lox.error(name,
 		      "Already variable with this name in this scope.");
+	    return;
 	}
-	scope.put(name.lexeme, false);
+	Local local = new Local(frame.size++, placement, false);
+	scope.locals.put(name.lexeme, local);
+	scope.order.add(local);
+    }
+
+    // "this" and "super" are the only variable in their scope, and the
+    // Interpreter always creates an environment for them.
+    private void declareImplicit(String name) {
+	Local local = new Local(-1, null, true);
+	local.captured = true;
+	scope.locals.put(name, local);
+	scope.order.add(local);
     }
 
     private void define(Token name) {
-	if (scopes.isEmpty()) return;
-	scopes.peek().put(name.lexeme, true);
+	if (scope == null) return;
+	scope.locals.get(name.lexeme).defined = true;
     }
 
     private void resolveLocal(Expr expr, Token name) {
-	for (int i = scopes.size() - 1; i >= 0; i --) {
-	    if (scopes.get(i).containsKey(name.lexeme)) {
-		interpreter.resolve(expr, scopes.size() - 1 - i);
+	for (Scope declaring = scope; declaring != null;
+	     declaring = declaring.enclosing) {
+	    Local local = declaring.locals.get(name.lexeme);
+	    if (local != null) {
+		// Used from another function, so it has to outlive the call.
+		if (declaring.frame != frame) local.captured = true;
+		if (expr instanceof Expr.Assign && local.function != null) {
+		    local.function.reassigned = true;
+		}
+		local.uses.add(expr);
+		local.useScopes.add(scope);
 		return;
 	    }
 	}
+
+	// A global. Its slot comes from the interpreter, which keeps the
+	// numbering across REPL lines.
+	bind(expr, -1, interpreter.globals.globalSlot(name.lexeme));
+	if (expr instanceof Expr.Assign) reboundGlobals.add(name.lexeme);
+    }
+
+    // Store where the variable lives right on the node,
+    // so the Interpreter reads a field instead of a map.
+    private void bind(Expr expr, int depth, int slot) {
+	if (expr instanceof Expr.Variable) {
+	    ((Expr.Variable)expr).depth = depth;
+	    ((Expr.Variable)expr).slot = slot;
+	} else if (expr instanceof Expr.Assign) {
+	    ((Expr.Assign)expr).depth = depth;
+	    ((Expr.Assign)expr).slot = slot;
+	} else if (expr instanceof Expr.This) {
+	    ((Expr.This)expr).depth = depth;
+	    ((Expr.This)expr).slot = slot;
+	} else if (expr instanceof Expr.Super) {
+	    ((Expr.Super)expr).depth = depth;
+	}
     }
     
 }
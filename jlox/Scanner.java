@@ -1,16 +1,28 @@
 package com.craftinginterpreters.jlox;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.jlox.TokenType.*;
 
-class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-    // start and current filds are offsets that index into the string
+// Scans a batch of tokens at a time, as the Parser asks for them, so a
+// whole file's worth of tokens never has to exist at once.
+class Scanner implements TokenStream {
+    // How many tokens scanInto() adds at a time.
+    private static final int BATCH = 1024;
+    // A word with every byte set to one, for find().
+    private static final long BYTES = 0x0101010101010101L;
+
+    // The source as UTF-8. Running a file maps it straight into memory
+    // instead of reading it onto the heap. All of Lox's syntax is ASCII,
+    // so the Scanner works on the bytes and only decodes lexemes.
+    private final ByteBuffer source;
+    private final int length;
+    // Where scanToken() puts what it finds.
+    private TokenBuffer tokens;
+    // start and current filds are offsets that index into the buffer
     // start points to the first character in the lexeme being scanned.
     private int start = 0;
     // current points at the character currently being considered.
@@ -18,48 +30,61 @@ class Scanner {
     // line field tracks what source line current is on
     // so we can produce tokens that know their location
     private int line = 1;
-    private static final Map<String, TokenType> keywords;
-
-    static {
-    keywords = new HashMap<>();
-    keywords.put("and",    AND);
-    keywords.put("class",  CLASS);
-    keywords.put("else",   ELSE);
-    keywords.put("false",  FALSE);
-    keywords.put("for",    FOR);
-    keywords.put("function", FUN);
-    keywords.put("if",     IF);
-    keywords.put("nil",    NIL);
-    keywords.put("or",     OR);
-    keywords.put("print",  PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",  SUPER);
-    keywords.put("this",   THIS);
-    keywords.put("true",   TRUE);
-    keywords.put("var",    VAR);
-    keywords.put("while",  WHILE);
-    keywords.put("extends", EXTENDS);
+    // Every identifier's name, so the same name scanned twice is the
+    // same String.
+    private final Symbols symbols = new Symbols();
+    // Errors held back to report later, or null to report them as
+    // they're found.
+    private List<Runnable> errors = null;
+
+    Scanner(ByteBuffer source) {
+	this.source = source;
+	this.length = source.limit();
     }
-    
-    
-    Scanner(String source) {
+
+    // Scans just the part of the source from one offset to another,
+    // starting on the given line. ParallelScanner runs these on other
+    // threads, so errors are held until reportErrors().
+    Scanner(ByteBuffer source, int from, int to, int line) {
 	this.source = source;
+	this.length = to;
+	this.start = from;
+	this.current = from;
+	this.line = line;
+	this.errors = new ArrayList<>();
+    }
+
+    // Scans the whole source up front, for when all the tokens are
+    // wanted at once.
+    TokenBuffer scanTokens() {
+	TokenBuffer tokens = new TokenBuffer(source);
+	do {
+	    scanInto(tokens);
+	} while (tokens.type(tokens.count - 1) != EOF);
+	return tokens;
     }
 
-    // We store the raw source cod as a simple string.
-    // We have a list ready to fill with tokens we're going to generate.
-    List<Token> scanTokens() {
+    @Override
+    public void scanInto(TokenBuffer tokens) {
+	this.tokens = tokens;
+	int limit = tokens.count + BATCH;
 	// Scanner works its way through the source code/
-	// adding tokens until it runs out of characters.
-	while (!isAtEnd()) {
+	// adding tokens until it has a batch or runs out of characters.
+	while (tokens.count < limit) {
+	    if (isAtEnd()) {
+		// one final "end of file" token.
+		tokens.add(EOF, current, 0, line, null);
+		return;
+	    }
 	    // We are at the beginning of the next lexeme.
 	    start = current;
 	    scanToken();
 	}
-	
-	// appends one final "end of file" token.
-	tokens.add(new Token(EOF, "", null, line));
-	return tokens;
+    }
+
+    void reportErrors() {
+	for (Runnable error : errors) error.run();
+	errors.clear();
     }
 
     // recognizing lexemes
@@ -91,7 +116,7 @@ class Scanner {
 	case '/':
 	    if (match('/')) {
 		// a comment goes until the end of the line.
-		while (peek() != '\n' && !isAtEnd()) advance();
+		current = find(current, '\n', '\n', '\n');
 		// Comments aren't meaningful, when reach the end of the comment we don't call addToken().
 	    } else if (match('*')) {
 		blockComment();
@@ -101,8 +126,10 @@ class Scanner {
 	case ' ':
 	case '\r':
 	case '\t':
-	    // Ignore whitespace
-	                                                    break;
+	    // Ignore whitespace, the whole run of it at once.
+	    while (peek() == ' ' || peek() == '\r' || peek() == '\t') {
+		current ++;
+	    }                                               break;
 	case '\n':
 	    line ++;                                        break;
 	// Tackle literals
@@ -114,7 +141,9 @@ class Scanner {
 	    } else if (isAlpha(c)) {
 		identifier();
 	    } else {
-		Lox.error(line, "Unexpected character.");
+		error("Unexpected character.");
+		// Once per character, not per byte of it.
+		while ((peek() & 0xc0) == 0x80) advance();
 	    }                                               break;
 	}
     }
@@ -122,13 +151,69 @@ class Scanner {
     private void identifier() {
 	while (isAlphaNumeric(peek())) advance();
 
-	// After scan an identifier, check to see if it matches anything in map.
-	String text = source.substring(start, current);
-	TokenType type = keywords.get(text);
-	// If so, we use that keyword’s token type.
-	// Otherwise, it’s a regular user-defined identifier.
-	if (type == null) type = IDENTIFIER;
-	addToken(type);
+	// Keywords are matched on the bytes, so scanning one makes no
+	// String. Any other name is interned and kept in the literal slot,
+	// where TokenBuffer finds it as the lexeme.
+	TokenType type = keyword();
+	if (type == IDENTIFIER) {
+	    addToken(IDENTIFIER, symbols.intern(source, start, current));
+	} else {
+	    addToken(type);
+	}
+    }
+
+    // A hand-rolled trie: the first character, and sometimes the second,
+    // pick the one keyword the lexeme could be, then the rest has to
+    // match it exactly.
+    private TokenType keyword() {
+	switch (charAt(start)) {
+	case 'a': return keyword(1, "nd", AND);
+	case 'c': return keyword(1, "lass", CLASS);
+	case 'e':
+	    if (current - start > 1) {
+		switch (charAt(start + 1)) {
+		case 'l': return keyword(2, "se", ELSE);
+		case 'x': return keyword(2, "tends", EXTENDS);
+		}
+	    }
+	    break;
+	case 'f':
+	    if (current - start > 1) {
+		switch (charAt(start + 1)) {
+		case 'a': return keyword(2, "lse", FALSE);
+		case 'o': return keyword(2, "r", FOR);
+		case 'u': return keyword(2, "nction", FUN);
+		}
+	    }
+	    break;
+	case 'i': return keyword(1, "f", IF);
+	case 'n': return keyword(1, "il", NIL);
+	case 'o': return keyword(1, "r", OR);
+	case 'p': return keyword(1, "rint", PRINT);
+	case 'r': return keyword(1, "eturn", RETURN);
+	case 's': return keyword(1, "uper", SUPER);
+	case 't':
+	    if (current - start > 1) {
+		switch (charAt(start + 1)) {
+		case 'h': return keyword(2, "is", THIS);
+		case 'r': return keyword(2, "ue", TRUE);
+		}
+	    }
+	    break;
+	case 'v': return keyword(1, "ar", VAR);
+	case 'w': return keyword(1, "hile", WHILE);
+	}
+	return IDENTIFIER;
+    }
+
+    private TokenType keyword(int offset, String rest, TokenType type) {
+	if (current - start != offset + rest.length()) return IDENTIFIER;
+	for (int i = 0; i < rest.length(); i ++) {
+	    if (charAt(start + offset + i) != rest.charAt(i)) {
+		return IDENTIFIER;
+	    }
+	}
+	return type;
     }
 
     private void number() {
@@ -141,7 +226,7 @@ class Scanner {
 	    while (isDigit(peek())) advance();
 	}
 
-	addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+	addToken(NUMBER, Double.parseDouble(text(start, current)));
 	
     }
     
@@ -152,7 +237,7 @@ class Scanner {
        }
 
        if (isAtEnd()) {
-	   Lox.error(line, "Unterminated string.");
+	   error("Unterminated string.");
 	   return;
        }
 
@@ -160,15 +245,24 @@ class Scanner {
        advance();
 
        //Trim the surrounding quote.
-       String value = source.substring(start + 1, current - 1);
+       String value = text(start + 1, current - 1);
        addToken(STRING, value);
    }
 
+    private void error(String message) {
+	if (errors == null) {
+	    Lox.error(line, message);
+	} else {
+	    int line = this.line;
+	    errors.add(() -> Lox.error(line, message));
+	}
+    }
+
     // It’s like a conditional advance().
     // We only consume the current character if it’s what we’re looking for.
     private boolean match(char expected) {
 	if (isAtEnd()) return false;
-	if (source.charAt(current) != expected) return false;
+	if (charAt(current) != expected) return false;
 	current ++;
 	return true;
     }
@@ -178,12 +272,12 @@ class Scanner {
     // It only looks at the current unconsumed character.
     private char peek() {
 	if (isAtEnd()) return '\0';
-	return source.charAt(current);
+	return charAt(current);
     }
 
     private char peekNext() {
-	if (current + 1 >= source.length()) return '\0';
-	return source.charAt(current + 1);
+	if (current + 1 >= length) return '\0';
+	return charAt(current + 1);
     }
 
     private boolean isAlpha(char c) {
@@ -202,51 +296,150 @@ class Scanner {
 
     // isAtEnd() tells us if we're consumed all the characters.
     private boolean isAtEnd() {
-	return current >= source.length();
+	return current >= length;
+    }
+
+    // Bytes past ASCII come out as chars 0x80-0xff, which none of the
+    // checks match.
+    private char charAt(int index) {
+	return (char)(source.get(index) & 0xff);
+    }
+
+    private String text(int from, int to) {
+	return text(source, from, to);
+    }
+
+    static String text(ByteBuffer source, int from, int to) {
+	byte[] bytes = new byte[to - from];
+	source.get(from, bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
     }
 
     // advance() is for "input"
     // advance() consumes the next character in the source file and returns it
     private char advance() {
-	return source.charAt(current++);
+	return charAt(current++);
     }
 
     // addToken() is for "output"
-    // addToken() grabs the text of the current lexeme and creats a new token for it.
+    // addToken() records where the current lexeme is, its text is only
+    // cut out if the Parser wants it.
     private void addToken(TokenType type) {
 	addToken(type, null);
     }
     
     private void addToken(TokenType type, Object literal) {
-	String text = source.substring(start, current);
-	tokens.add(new Token(type, text, literal, line));
+	tokens.add(type, start, current - start, line, literal);
     }
 
-    // handle '/* ... */'
+    // handle '/* ... */', which can nest. Only newlines and the two
+    // delimiters matter inside one, so it jumps from one of those to
+    // the next.
     private void blockComment() {
-	while (peek() != '*' && !isAtEnd()) {
-	    // when encounter '\n', need to add line
-	    if (peek() == '\n') ++line;
-	    // handle '*/'
-	    if (peek() == '/') {
-		if (peekNext() == '*') {
-		    advance();
-		    advance();
-		    blockComment();
-		}
+	int depth = 1;
+	while (depth > 0) {
+	    current = find(current, '\n', '*', '/');
+	    if (isAtEnd()) {
+		error("Unterminated block comment");
+		return;
+	    }
+
+	    char c = advance();
+	    if (c == '\n') {
+		line ++;
+	    } else if (c == '*' && match('/')) {
+		depth --;
+	    } else if (c == '/' && match('*')) {
+		depth ++;
 	    }
-	    advance();
 	}
-	
-	if (isAtEnd()) {
-	    Lox.error(line, "Unterminated block comment");
+    }
+
+    private int find(int from, char a, char b, char c) {
+	return find(source, from, length, a, b, c);
+    }
+
+    // The index of the next a, b or c at or after from, or to if there
+    // isn't one before it. It reads eight bytes at a time and only looks
+    // at them one by one in a word that has one of the three.
+    static int find(ByteBuffer source, int from, int to,
+		    char a, char b, char c) {
+	long as = BYTES * a;
+	long bs = BYTES * b;
+	long cs = BYTES * c;
+	int i = from;
+	for (; i + 8 <= to; i += 8) {
+	    long word = source.getLong(i);
+	    if (hasZeroByte(word ^ as) || hasZeroByte(word ^ bs) ||
+		hasZeroByte(word ^ cs)) {
+		break;
+	    }
 	}
+	for (; i < to; i ++) {
+	    char next = (char)(source.get(i) & 0xff);
+	    if (next == a || next == b || next == c) return i;
+	}
+	return to;
+    }
 
-	advance();
+    // Whether any byte of the word is zero.
+    private static boolean hasZeroByte(long word) {
+	return ((word - BYTES) & ~word & (BYTES << 7)) != 0;
+    }
 
-	if (!match('/')) {
-	    advance();
-	    blockComment();
+    // An open-addressed hash set of names, looked up by the bytes of a
+    // lexeme so a name that's already in it costs no allocation.
+    // Identifiers are ASCII, so each byte is one char of the String.
+    private static final class Symbols {
+	private String[] names = new String[256];
+	private int[] hashes = new int[256];
+	private int count = 0;
+
+	String intern(ByteBuffer source, int from, int to) {
+	    int hash = 0x811c9dc5;
+	    for (int i = from; i < to; i ++) {
+		hash = (hash ^ source.get(i)) * 0x01000193;
+	    }
+
+	    int mask = names.length - 1;
+	    int index = hash & mask;
+	    while (names[index] != null) {
+		if (hashes[index] == hash &&
+		    matches(names[index], source, from, to)) {
+		    return names[index];
+		}
+		index = (index + 1) & mask;
+	    }
+
+	    String name = text(source, from, to);
+	    names[index] = name;
+	    hashes[index] = hash;
+	    if (++count * 2 > names.length) grow();
+	    return name;
+	}
+
+	private static boolean matches(String name, ByteBuffer source,
+				       int from, int to) {
+	    if (name.length() != to - from) return false;
+	    for (int i = 0; i < name.length(); i ++) {
+		if (name.charAt(i) != source.get(from + i)) return false;
+	    }
+	    return true;
+	}
+
+	private void grow() {
+	    String[] oldNames = names;
+	    int[] oldHashes = hashes;
+	    names = new String[oldNames.length * 2];
+	    hashes = new int[oldNames.length * 2];
+	    int mask = names.length - 1;
+	    for (int i = 0; i < oldNames.length; i ++) {
+		if (oldNames[i] == null) continue;
+		int index = oldHashes[i] & mask;
+		while (names[index] != null) index = (index + 1) & mask;
+		names[index] = oldNames[i];
+		hashes[index] = oldHashes[i];
+	    }
 	}
     }
 }
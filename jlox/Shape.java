@@ -0,0 +1,41 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A hidden class: the layout of an instance's fields.
+// Instances that got the same fields in the same order share one Shape,
+// and store the values in an array at the offsets the Shape hands out.
+// Every class has its own root shape, so a shape also identifies the class.
+class Shape {
+    private final Map<String, Integer> offsets;
+    private final Map<String, Shape> transitions = new HashMap<>();
+    final int size;
+
+    Shape() {
+	this.offsets = new HashMap<>();
+	this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+	this.offsets = new HashMap<>(parent.offsets);
+	this.offsets.put(name, parent.size);
+	this.size = parent.size + 1;
+    }
+
+    // Returns -1 if the field isn't part of this shape.
+    int offsetOf(String name) {
+	Integer offset = offsets.get(name);
+	return offset == null ? -1 : offset;
+    }
+
+    // The shape after adding a field, shared by everyone who adds it here.
+    Shape with(String name) {
+	Shape next = transitions.get(name);
+	if (next == null) {
+	    next = new Shape(this, name);
+	    transitions.put(name, next);
+	}
+	return next;
+    }
+}
@@ -7,6 +7,7 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitForStmt(For stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
         R visitPrintStmt(Print stmt);
@@ -25,6 +26,7 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        boolean hasEnvironment;
     }
     static class Class extends Stmt {
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -41,6 +43,7 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -54,6 +57,26 @@ abstract class Stmt {
 
         final Expr expression;
     }
+    static class For extends Stmt {
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        boolean hasEnvironment;
+        int[] invariants = new int[0];
+    }
     static class Function extends Stmt {
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -69,6 +92,14 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        int frameSize;
+        boolean hasEnvironment;
+        boolean[] capturedParams;
+        int calls;
+        Jit.Code compiled;
+        boolean uncompilable;
+        boolean reassigned;
     }
     static class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -125,6 +156,7 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot = -1;
     }
     static class While extends Stmt {
         While(Expr condition, Stmt body) {
@@ -139,6 +171,7 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        int[] invariants = new int[0];
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,152 @@
+package com.craftinginterpreters.jlox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+// Tokens stored column by column in parallel arrays, rather than as a
+// Token object each with its own lexeme string. A token is its type's
+// ordinal, where its lexeme starts in the source and how long it is,
+// and its line. Literal values go in a side table that's null for
+// everything but numbers and strings, and identifiers, which keep their
+// interned name there.
+//
+// The Parser reads tokens by index and only turns the ones it keeps in
+// the tree, or reports errors at, into Tokens. Their lexemes are cut
+// from the source then, and only for strings and numbers, since every
+// other type always has the same text or already has its name.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int IDENTIFIER_ORDINAL =
+	TokenType.IDENTIFIER.ordinal();
+    // The text of every type that always has the same text, in the
+    // order TokenType declares them.
+    private static final String[] FIXED = {
+	"(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+	"!", "!=", "=", "==", ">", ">=", "<", "<=",
+	null, null, null,
+	"and", "class", "else", "false", "function", "for", "if", "nil",
+	"or", "print", "return", "super", "this", "true", "var", "while",
+	"extends",
+	"",
+    };
+
+    private final ByteBuffer source;
+    int count = 0;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private Object[] literals;
+
+    TokenBuffer(ByteBuffer source) {
+	this.source = source;
+	int capacity = 1024;
+	types = new int[capacity];
+	starts = new int[capacity];
+	lengths = new int[capacity];
+	lines = new int[capacity];
+	literals = new Object[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line,
+	     Object literal) {
+	if (count == types.length) {
+	    int capacity = count * 2;
+	    types = Arrays.copyOf(types, capacity);
+	    starts = Arrays.copyOf(starts, capacity);
+	    lengths = Arrays.copyOf(lengths, capacity);
+	    lines = Arrays.copyOf(lines, capacity);
+	    literals = Arrays.copyOf(literals, capacity);
+	}
+	types[count] = type.ordinal();
+	starts[count] = start;
+	lengths[count] = length;
+	lines[count] = line;
+	literals[count] = literal;
+	count ++;
+    }
+
+    // Adds the first count tokens of another buffer over the same
+    // source. Identifiers' names go through names, so a name scanned
+    // by two different Scanners still ends up one String.
+    void append(TokenBuffer other, int count, Map<String, String> names) {
+	int size = this.count + count;
+	if (size > types.length) {
+	    int capacity = Math.max(size, types.length * 2);
+	    types = Arrays.copyOf(types, capacity);
+	    starts = Arrays.copyOf(starts, capacity);
+	    lengths = Arrays.copyOf(lengths, capacity);
+	    lines = Arrays.copyOf(lines, capacity);
+	    literals = Arrays.copyOf(literals, capacity);
+	}
+	System.arraycopy(other.types, 0, types, this.count, count);
+	System.arraycopy(other.starts, 0, starts, this.count, count);
+	System.arraycopy(other.lengths, 0, lengths, this.count, count);
+	System.arraycopy(other.lines, 0, lines, this.count, count);
+	System.arraycopy(other.literals, 0, literals, this.count, count);
+	for (int i = this.count; i < size; i ++) {
+	    if (types[i] == IDENTIFIER_ORDINAL) {
+		String name = (String)literals[i];
+		String first = names.putIfAbsent(name, name);
+		if (first != null) literals[i] = first;
+	    }
+	}
+	this.count = size;
+    }
+
+    // Whether both hold the same tokens, literals and all.
+    boolean sameTokens(TokenBuffer other) {
+	if (count != other.count) return false;
+	for (int i = 0; i < count; i ++) {
+	    if (types[i] != other.types[i] || starts[i] != other.starts[i] ||
+		lengths[i] != other.lengths[i] || lines[i] != other.lines[i] ||
+		!Objects.equals(literals[i], other.literals[i])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Drops every token but the last, which moves to the front. The
+    // Parser does this before reading the next batch, since it still
+    // needs the token it just consumed.
+    void keepLast() {
+	int last = count - 1;
+	types[0] = types[last];
+	starts[0] = starts[last];
+	lengths[0] = lengths[last];
+	lines[0] = lines[last];
+	literals[0] = literals[last];
+	Arrays.fill(literals, 1, count, null);
+	count = 1;
+    }
+
+    TokenType type(int index) {
+	return TYPES[types[index]];
+    }
+
+    int line(int index) {
+	return lines[index];
+    }
+
+    // The value of a number or string token, without making a Token.
+    Object literal(int index) {
+	return literals[index];
+    }
+
+    String lexeme(int index) {
+	String text = FIXED[types[index]];
+	if (text != null) return text;
+	if (types[index] == IDENTIFIER_ORDINAL) return (String)literals[index];
+	return Scanner.text(source, starts[index],
+			    starts[index] + lengths[index]);
+    }
+
+    Token token(int index) {
+	Object literal = types[index] == IDENTIFIER_ORDINAL ?
+	    null : literals[index];
+	return new Token(type(index), lexeme(index), literal, lines[index]);
+    }
+}
@@ -0,0 +1,8 @@
+package com.craftinginterpreters.jlox;
+
+// Where the Parser gets its tokens from, a batch at a time.
+interface TokenStream {
+    // Adds at least one more token to the end of the buffer. The last
+    // one it adds once the source runs out is EOF.
+    void scanInto(TokenBuffer tokens);
+}
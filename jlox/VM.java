@@ -0,0 +1,626 @@
+package com.craftinginterpreters.jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.jlox.OpCode.*;
+
+// A stack-based virtual machine that runs the bytecode from Compiler.
+// Calls push a CallFrame instead of recursing into Java.
+class VM {
+    // A compiled function body.
+    static class Function {
+	final String name;
+	final int arity;
+	final boolean isInitializer;
+	final Chunk chunk = new Chunk();
+	// The Resolver's layout, filled in by the Compiler.
+	int frameSize = 0;
+	boolean hasEnvironment = false;
+	boolean[] capturedParams = new boolean[0];
+	// What it was compiled from, or null for the script.
+	Stmt.Function declaration = null;
+
+	Function(String name, int arity, boolean isInitializer) {
+	    this.name = name;
+	    this.arity = arity;
+	    this.isInitializer = isInitializer;
+	}
+
+	@Override
+	public String toString() {
+	    return "<fn " + name + ">";
+	}
+    }
+
+    // A function together with the environment it was declared in.
+    static class Closure {
+	final Function function;
+	final Environment environment;
+
+	Closure(Function function, Environment environment) {
+	    this.function = function;
+	    this.environment = environment;
+	}
+
+	@Override
+	public String toString() {
+	    return function.toString();
+	}
+    }
+
+    static class BoundMethod {
+	final Object receiver;
+	final Closure method;
+
+	BoundMethod(Object receiver, Closure method) {
+	    this.receiver = receiver;
+	    this.method = method;
+	}
+
+	@Override
+	public String toString() {
+	    return method.toString();
+	}
+    }
+
+    // Classes and instances are laid out like LoxClass and LoxInstance:
+    // the methods table includes the inherited ones, and fields sit in
+    // an array described by a Shape.
+    static class Klass {
+	final String name;
+	final Klass superclass;
+	final Map<String, Closure> methods = new HashMap<>();
+	final Shape rootShape = new Shape();
+
+	Klass(String name, Klass superclass) {
+	    this.name = name;
+	    this.superclass = superclass;
+	    // The superclass is complete by now. METHOD replaces what this
+	    // class overrides.
+	    if (superclass != null) methods.putAll(superclass.methods);
+	}
+
+	Closure findMethod(String name) {
+	    return methods.get(name);
+	}
+
+	@Override
+	public String toString() {
+	    return name;
+	}
+    }
+
+    static class Instance {
+	private static final Object[] NO_FIELDS = new Object[0];
+
+	final Klass klass;
+	private Shape shape;
+	private Object[] fields = NO_FIELDS;
+
+	Instance(Klass klass) {
+	    this.klass = klass;
+	    this.shape = klass.rootShape;
+	}
+
+	// Returns -1 if there's no such field.
+	int offsetOf(String name) {
+	    return shape.offsetOf(name);
+	}
+
+	Object getField(int offset) {
+	    return fields[offset];
+	}
+
+	void set(String name, Object value) {
+	    int offset = shape.offsetOf(name);
+	    if (offset == -1) {
+		shape = shape.with(name);
+		offset = shape.size - 1;
+		if (offset == fields.length) {
+		    fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+		}
+	    }
+	    fields[offset] = value;
+	}
+
+	@Override
+	public String toString() {
+	    return klass.name + " instance";
+	}
+    }
+
+    private static class CallFrame {
+	Closure closure;
+	byte[] code;
+	List<Object> constants;
+	int ip;
+	Environment environment;
+	// Where the frame's slots start on the stack.
+	int base;
+	// Set for initializers, which always return the instance.
+	Object receiver;
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // Frames live on the heap, so how deep Lox code can recurse is up to
+    // us rather than the thread's stack size. Set by --max-depth.
+    static int maxDepth = 100000;
+
+    // Natives and globals are shared with the tree-walker,
+    // so both engines see the same top-level state in the REPL.
+    VM(Interpreter interpreter) {
+	this.interpreter = interpreter;
+	this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements, int frameSize) {
+	Function script = Compiler.compile(statements, frameSize);
+	if (Lox.hadError) return;
+
+	try {
+	    reserve(frameSize);
+	    stackTop = frameSize;
+	    pushFrame(new Closure(script, globals), globals, null, 0);
+	    run();
+	} catch (RuntimeError error) {
+	    Lox.runtimeError(error);
+	} finally {
+	    Arrays.fill(stack, 0, stackTop, null);
+	    stackTop = 0;
+	    frameCount = 0;
+	}
+    }
+
+    private void run() {
+	CallFrame frame = frames[frameCount - 1];
+	byte[] code = frame.code;
+	int ip = frame.ip;
+
+	for (;;) {
+	    byte instruction = code[ip++];
+	    switch (instruction) {
+	    case CONSTANT: {
+		push(frame.constants.get(readShort(code, ip)));
+		ip += 2;
+		break;
+	    }
+	    case NIL:   push(null);  break;
+	    case TRUE:  push(true);  break;
+	    case FALSE: push(false); break;
+	    case POP:   pop();       break;
+
+	    case GET_LOCAL: {
+		int depth = readShort(code, ip);
+		int slot = readShort(code, ip + 2);
+		ip += 4;
+		push(frame.environment.getAt(depth, slot));
+		break;
+	    }
+	    case SET_LOCAL: {
+		int depth = readShort(code, ip);
+		int slot = readShort(code, ip + 2);
+		ip += 4;
+		frame.environment.assignAt(depth, slot, peek(0));
+		break;
+	    }
+	    case GET_GLOBAL: {
+		Environment.Global global = globals.global(readShort(code, ip));
+		ip += 2;
+		if (!global.defined) throw undefined(frame, ip, global);
+		push(global.value);
+		break;
+	    }
+	    case SET_GLOBAL: {
+		Environment.Global global = globals.global(readShort(code, ip));
+		ip += 2;
+		if (!global.defined) throw undefined(frame, ip, global);
+		global.value = peek(0);
+		break;
+	    }
+	    case DEFINE: {
+		String name = (String)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		frame.environment.define(name, pop());
+		break;
+	    }
+	    case GET_FRAME:
+		push(stack[frame.base + readShort(code, ip)]);
+		ip += 2;
+		break;
+	    case SET_FRAME:
+		stack[frame.base + readShort(code, ip)] = peek(0);
+		ip += 2;
+		break;
+	    case PUSH_SCOPE:
+		frame.environment = new Environment(frame.environment);
+		break;
+	    case POP_SCOPE:
+		frame.environment = frame.environment.enclosing;
+		break;
+
+	    case GET_PROPERTY: {
+		Token name = (Token)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		Object object = pop();
+		if (!(object instanceof Instance)) {
+		    throw new RuntimeError(name, "Only instance have properties.");
+		}
+		push(getProperty((Instance)object, name));
+		break;
+	    }
+	    case CHECK_FIELDS: {
+		Token name = (Token)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		if (!(peek(0) instanceof Instance)) {
+		    throw new RuntimeError(name, "Only instances have fields.");
+		}
+		break;
+	    }
+	    case SET_PROPERTY: {
+		Token name = (Token)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		Object value = pop();
+		Instance instance = (Instance)pop();
+		instance.set(name.lexeme, value);
+		push(value);
+		break;
+	    }
+	    case GET_SUPER: {
+		int depth = readShort(code, ip);
+		Token method = (Token)frame.constants.get(readShort(code, ip + 2));
+		ip += 4;
+		// "super" and "this" are the only slot in their scopes.
+		Klass superclass = (Klass)frame.environment.getAt(depth, 0);
+		Object receiver = frame.environment.getAt(depth - 1, 0);
+		Closure closure = superclass.findMethod(method.lexeme);
+		if (closure == null) {
+		    throw new RuntimeError(method,
+					   "Undefined property'" + method.lexeme + "'.");
+		}
+		push(new BoundMethod(receiver, closure));
+		break;
+	    }
+
+	    case EQUAL: {
+		Object b = pop();
+		Object a = pop();
+		push(Interpreter.isEqual(a, b));
+		break;
+	    }
+	    case GREATER: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a > b);
+		break;
+	    }
+	    case GREATER_EQUAL: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a >= b);
+		break;
+	    }
+	    case LESS: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a < b);
+		break;
+	    }
+	    case LESS_EQUAL: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a <= b);
+		break;
+	    }
+	    case ADD: {
+		Object b = pop();
+		Object a = pop();
+		if (a instanceof Double && b instanceof Double) {
+		    push((double)a + (double)b);
+		} else if (a instanceof String && b instanceof String) {
+		    push((String)a + (String)b);
+		} else {
+		    throw error(frame, ip, "Operands must be two or two strings.");
+		}
+		break;
+	    }
+	    case SUBTRACT: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a - b);
+		break;
+	    }
+	    case MULTIPLY: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a * b);
+		break;
+	    }
+	    case DIVIDE: {
+		checkNumberOperands(frame, ip);
+		double b = (double)pop();
+		double a = (double)pop();
+		push(a / b);
+		break;
+	    }
+	    case NOT:
+		push(!Interpreter.isTruthy(pop()));
+		break;
+	    case NEGATE:
+		if (!(peek(0) instanceof Double)) {
+		    throw error(frame, ip, "Operand must be a number.");
+		}
+		push(-(double)pop());
+		break;
+
+	    case PRINT:
+		System.out.println(Interpreter.stringify(pop()));
+		break;
+	    case JUMP: {
+		int offset = readShort(code, ip);
+		ip += 2 + offset;
+		break;
+	    }
+	    case JUMP_IF_FALSE: {
+		int offset = readShort(code, ip);
+		ip += 2;
+		if (!Interpreter.isTruthy(peek(0))) ip += offset;
+		break;
+	    }
+	    case CHECK_INLINED: {
+		Object declaration = frame.constants.get(readShort(code, ip));
+		int offset = readShort(code, ip + 2);
+		ip += 4;
+		Object callee = peek(0);
+		if (callee instanceof Closure &&
+		    ((Closure)callee).function.declaration == declaration) {
+		    pop();
+		} else {
+		    ip += offset;
+		}
+		break;
+	    }
+	    case JUMP_IF_CACHED: {
+		int offset = readShort(code, ip);
+		ip += 2;
+		if (peek(0) != null) {
+		    ip += offset;
+		} else {
+		    pop();
+		}
+		break;
+	    }
+	    case LOOP: {
+		int offset = readShort(code, ip);
+		ip += 2 - offset;
+		break;
+	    }
+	    case CALL: {
+		int argCount = code[ip++] & 0xff;
+		frame.ip = ip;
+		callValue(peek(argCount), argCount, frame);
+		frame = frames[frameCount - 1];
+		code = frame.code;
+		ip = frame.ip;
+		break;
+	    }
+	    case CLOSURE: {
+		Function function = (Function)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		push(new Closure(function, frame.environment));
+		break;
+	    }
+	    case RETURN: {
+		Object result = pop();
+		if (frame.closure.function.isInitializer) result = frame.receiver;
+		frameCount --;
+		frames[frameCount] = null;
+		if (frameCount == 0) return;
+
+		// Drop the frame's slots and the callee below them.
+		int top = frame.base - 1;
+		Arrays.fill(stack, top, stackTop, null);
+		stackTop = top;
+		push(result);
+		frame = frames[frameCount - 1];
+		code = frame.code;
+		ip = frame.ip;
+		break;
+	    }
+
+	    case CLASS: {
+		String name = (String)frame.constants.get(readShort(code, ip));
+		boolean hasSuperclass = code[ip + 2] != 0;
+		ip += 3;
+		Klass superclass = null;
+		if (hasSuperclass) {
+		    Object value = pop();
+		    if (!(value instanceof Klass)) {
+			throw error(frame, ip, "Superclass must be a class.");
+		    }
+		    superclass = (Klass)value;
+		}
+		push(new Klass(name, superclass));
+		break;
+	    }
+	    case INHERIT: {
+		Klass klass = (Klass)peek(0);
+		frame.environment = new Environment(frame.environment);
+		frame.environment.define("super", klass.superclass);
+		break;
+	    }
+	    case METHOD: {
+		String name = (String)frame.constants.get(readShort(code, ip));
+		ip += 2;
+		Closure method = (Closure)pop();
+		((Klass)peek(0)).methods.put(name, method);
+		break;
+	    }
+	    }
+	}
+    }
+
+    private Object getProperty(Instance instance, Token name) {
+	int offset = instance.offsetOf(name.lexeme);
+	if (offset != -1) return instance.getField(offset);
+
+	Closure method = instance.klass.findMethod(name.lexeme);
+	if (method != null) return new BoundMethod(instance, method);
+
+	throw new RuntimeError(name,
+			       "Undefined property '" + name.lexeme + ".");
+    }
+
+    // On return the callee and its arguments have been replaced by either
+    // the result (natives, classes without init) or a new frame.
+    private void callValue(Object callee, int argCount, CallFrame frame) {
+	if (callee instanceof Closure) {
+	    Closure closure = (Closure)callee;
+	    call(closure, closure.environment, argCount, frame, null);
+	} else if (callee instanceof BoundMethod) {
+	    BoundMethod bound = (BoundMethod)callee;
+	    Environment environment = new Environment(bound.method.environment);
+	    environment.define("this", bound.receiver);
+	    call(bound.method, environment, argCount, frame, bound.receiver);
+	} else if (callee instanceof Klass) {
+	    Klass klass = (Klass)callee;
+	    Instance instance = new Instance(klass);
+	    Closure initializer = klass.findMethod("init");
+	    if (initializer != null) {
+		Environment environment = new Environment(initializer.environment);
+		environment.define("this", instance);
+		call(initializer, environment, argCount, frame, instance);
+	    } else {
+		checkArity(0, argCount, frame);
+		stackTop -= argCount + 1;
+		push(instance);
+	    }
+	} else if (callee instanceof LoxCallable) {
+	    LoxCallable function = (LoxCallable)callee;
+	    checkArity(function.arity(), argCount, frame);
+	    int base = stackTop - argCount;
+	    Object result;
+	    switch (argCount) {
+	    case 0: result = function.call0(interpreter); break;
+	    case 1: result = function.call1(interpreter, stack[base]); break;
+	    case 2:
+		result = function.call2(interpreter, stack[base], stack[base + 1]);
+		break;
+	    case 3:
+		result = function.call3(interpreter, stack[base], stack[base + 1],
+					stack[base + 2]);
+		break;
+	    default:
+		result = function.call(interpreter,
+				       Arrays.copyOfRange(stack, base, stackTop));
+		break;
+	    }
+	    stackTop -= argCount + 1;
+	    push(result);
+	} else {
+	    throw error(frame, frame.ip, "Can only call fun ctions and classes.");
+	}
+    }
+
+    private void call(Closure closure, Environment enclosing, int argCount,
+		      CallFrame caller, Object receiver) {
+	checkArity(closure.function.arity, argCount, caller);
+	if (frameCount == maxDepth) {
+	    throw error(caller, caller.ip, "Stack overflow.");
+	}
+
+	// The arguments are already where the frame's first slots go.
+	// Captured parameters are copied into the function's environment.
+	Function function = closure.function;
+	int base = stackTop - argCount;
+	Environment environment = enclosing;
+	if (function.hasEnvironment) environment = new Environment(enclosing);
+	for (int i = 0; i < argCount; i ++) {
+	    if (function.capturedParams[i]) environment.define(null, stack[base + i]);
+	}
+	reserve(base + function.frameSize);
+	stackTop = base + function.frameSize;
+	pushFrame(closure, environment, receiver, base);
+    }
+
+    private void reserve(int size) {
+	if (size > stack.length) {
+	    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size));
+	}
+    }
+
+    private void pushFrame(Closure closure, Environment environment,
+			   Object receiver, int base) {
+	if (frameCount == frames.length) {
+	    frames = Arrays.copyOf(frames, frameCount * 2);
+	}
+	CallFrame frame = new CallFrame();
+	frame.closure = closure;
+	frame.code = closure.function.chunk.code;
+	frame.constants = closure.function.chunk.constants;
+	frame.ip = 0;
+	frame.environment = environment;
+	frame.receiver = receiver;
+	frame.base = base;
+	frames[frameCount++] = frame;
+    }
+
+    private void checkArity(int arity, int argCount, CallFrame frame) {
+	if (argCount != arity) {
+	    throw error(frame, frame.ip, "Expected " + arity +
+			" arguments but got " + argCount + ".");
+	}
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip) {
+	if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+	throw error(frame, ip, "Operands must be numbers.");
+    }
+
+    private RuntimeError undefined(CallFrame frame, int ip,
+				   Environment.Global global) {
+	return error(frame, ip, "Undefined variable '" + global.name + "'.");
+    }
+
+    // Builds an error pointing at the line of the instruction just before ip.
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+	int line = frame.closure.function.chunk.lines[ip - 1];
+	return new RuntimeError(new Token(TokenType.EOF, "", null, line),
+				message);
+    }
+
+    private static int readShort(byte[] code, int ip) {
+	return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+	if (stackTop == stack.length) {
+	    stack = Arrays.copyOf(stack, stackTop * 2);
+	}
+	stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+	Object value = stack[--stackTop];
+	stack[stackTop] = null;
+	return value;
+    }
+
+    private Object peek(int distance) {
+	return stack[stackTop - 1 - distance];
+    }
+}
@@ -0,0 +1,171 @@
+package com.craftinginterpreters.jlox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs every script in test/ under each engine and checks what it
+// prints against its comments:
+//   // expect: <line>                one line of output, in order
+//   // expect runtime error: <msg>   the script stops with this error
+//                                    at the comment's line, exit 70
+//   // options: <args...>            passed to jlox in every mode
+//   // only: <arg>                   skip modes that don't pass <arg>
+//   // skip: <arg>                   skip modes that do, can repeat
+//   // repl                          type the script into the prompt
+//                                    a line at a time instead
+// The optimizer runs ahead of every engine, so each mode checks it
+// too, and the --no-optimize modes check that it doesn't change what
+// a script does, and so does --inline-budget=0 for inlining.
+//
+//   javac -d out jlox/*.java test/*.java
+//   java -cp out com.craftinginterpreters.jlox.RunTests [test dir]
+public class RunTests {
+    private static final String EXPECT = "// expect: ";
+    private static final String EXPECT_ERROR = "// expect runtime error: ";
+    private static final String OPTIONS = "// options: ";
+    private static final String ONLY = "// only: ";
+    private static final String SKIP = "// skip: ";
+    private static final String REPL = "// repl";
+    private static final String[][] MODES = {
+	{},
+	{"--engine=vm"},
+	{"--specialize"},
+	{"--jit-threshold=1"},
+	{"--scan-chunk=1"},
+	{"--no-optimize"},
+	{"--no-optimize", "--engine=vm"},
+	{"--inline-budget=0"},
+    };
+
+    // What one script says it should do.
+    private static class Expectation {
+	final List<String> output = new ArrayList<>();
+	final List<String> options = new ArrayList<>();
+	String only = null;
+	final List<String> skip = new ArrayList<>();
+	boolean repl = false;
+	// The stderr of a runtime error, or null if it should run cleanly.
+	String error = null;
+    }
+
+    public static void main(String[] args) throws Exception {
+	Path dir = Paths.get(args.length > 0 ? args[0] : "test");
+	List<Path> scripts;
+	try (Stream<Path> files = Files.list(dir)) {
+	    scripts = files.filter(path -> path.toString().endsWith(".lox"))
+		.sorted().collect(Collectors.toList());
+	}
+
+	int runs = 0;
+	int failures = 0;
+	for (Path script : scripts) {
+	    Expectation expected = expectation(script);
+	    for (String[] mode : MODES) {
+		List<String> flags = Arrays.asList(mode);
+		if (expected.only != null && !flags.contains(expected.only) ||
+		    !Collections.disjoint(flags, expected.skip)) {
+		    continue;
+		}
+		runs ++;
+		if (!passes(script, mode, expected)) failures ++;
+	    }
+	}
+
+	System.out.println(scripts.size() + " scripts, " + runs + " runs, " +
+			   failures + " failed");
+	if (failures > 0) System.exit(1);
+    }
+
+    private static Expectation expectation(Path script) throws IOException {
+	Expectation expected = new Expectation();
+	List<String> lines = Files.readAllLines(script);
+	for (int i = 0; i < lines.size(); i ++) {
+	    String line = lines.get(i);
+	    if (line.contains(EXPECT)) {
+		expected.output.add(after(line, EXPECT));
+	    } else if (line.contains(EXPECT_ERROR)) {
+		expected.error = after(line, EXPECT_ERROR) +
+		    "\n[line " + (i + 1) + "]\n";
+	    } else if (line.startsWith(OPTIONS)) {
+		expected.options.addAll(
+		    Arrays.asList(after(line, OPTIONS).split(" ")));
+	    } else if (line.startsWith(ONLY)) {
+		expected.only = after(line, ONLY);
+	    } else if (line.startsWith(SKIP)) {
+		expected.skip.add(after(line, SKIP));
+	    } else if (line.equals(REPL)) {
+		expected.repl = true;
+	    }
+	}
+	return expected;
+    }
+
+    private static String after(String line, String prefix) {
+	return line.substring(line.indexOf(prefix) + prefix.length());
+    }
+
+    private static boolean passes(Path script, String[] mode,
+				  Expectation expected)
+	throws IOException, InterruptedException {
+	List<String> command = new ArrayList<>(Arrays.asList(
+	    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+	    "-cp", System.getProperty("java.class.path"),
+	    Lox.class.getName()));
+	command.addAll(Arrays.asList(mode));
+	command.addAll(expected.options);
+	ProcessBuilder builder = new ProcessBuilder(command);
+	if (expected.repl) {
+	    builder.redirectInput(script.toFile());
+	} else {
+	    command.add(script.toString());
+	}
+
+	File errorFile = File.createTempFile("jlox", ".err");
+	errorFile.deleteOnExit();
+	Process process = builder.redirectError(errorFile).start();
+	String output = new String(process.getInputStream().readAllBytes(),
+				   StandardCharsets.UTF_8);
+	int exit = process.waitFor();
+	String errors = new String(Files.readAllBytes(errorFile.toPath()),
+				   StandardCharsets.UTF_8);
+
+	List<String> actual = output.isEmpty() ?
+	    List.of() : Arrays.asList(output.split("\n", -1));
+	if (expected.repl) {
+	    // Drop the prompts, which go before every line typed.
+	    actual = actual.stream().map(line -> line.replaceFirst("^>+", ""))
+		.collect(Collectors.toList());
+	}
+	if (!actual.isEmpty() && actual.get(actual.size() - 1).isEmpty()) {
+	    actual = actual.subList(0, actual.size() - 1);
+	}
+	boolean passed = actual.equals(expected.output);
+	if (expected.error == null) {
+	    // Nothing on stderr either, where the JIT reports code it
+	    // generated wrong.
+	    passed &= exit == 0 && errors.isEmpty();
+	} else {
+	    passed &= exit == 70 && errors.equals(expected.error);
+	}
+	if (passed) return true;
+
+	System.out.println("FAIL " + script + " " + String.join(" ", mode));
+	System.out.println("  expected: " + expected.output);
+	System.out.println("  actual:   " + actual);
+	if (expected.error != null) {
+	    System.out.print("  expected error: " + expected.error);
+	}
+	System.out.print("  exit " + exit + ", stderr: " + errors);
+	return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Checks that ParallelScanner finds exactly the tokens the serial
+// Scanner does, and reports the same scan errors in the same order.
+// It scans every script in test/ and benchmark/ with chunks of 1, 7
+// and 64 bytes, then a batch of random snippets built from the
+// pieces that decide where a chunk may start: newlines, quotes, and
+// comment delimiters, nested or left open.
+//
+//   javac -d out jlox/*.java test/*.java
+//   java -cp out com.craftinginterpreters.jlox.ScanCheck [snippets] [seed]
+public class ScanCheck {
+    private static final int[] CHUNK_SIZES = { 1, 7, 64 };
+    private static final String[] PIECES = {
+	"\n", "\n", "\r\n", " ", "\"", "/", "*", "//", "/*", "*/", "**",
+	"//*", "/**/", "x", "12", "3.5", "var", "é", "=",
+    };
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+	int snippets = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+	long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+	int scripts = 0;
+	for (String dir : new String[] { "test", "benchmark" }) {
+	    for (Path script : scripts(Paths.get(dir))) {
+		byte[] bytes = Files.readAllBytes(script);
+		for (int chunkSize : CHUNK_SIZES) {
+		    check(script.toString(), bytes, chunkSize);
+		}
+		scripts ++;
+	    }
+	}
+
+	Random random = new Random(seed);
+	for (int i = 0; i < snippets; i ++) {
+	    StringBuilder snippet = new StringBuilder();
+	    int length = random.nextInt(60);
+	    for (int j = 0; j < length; j ++) {
+		snippet.append(PIECES[random.nextInt(PIECES.length)]);
+	    }
+	    check("snippet " + i,
+		  snippet.toString().getBytes(StandardCharsets.UTF_8),
+		  1 + random.nextInt(5));
+	}
+
+	System.out.println(scripts + " scripts, " + snippets + " snippets, " +
+			   failures + " failed");
+	if (failures > 0) System.exit(1);
+    }
+
+    private static List<Path> scripts(Path dir) throws IOException {
+	if (!Files.isDirectory(dir)) return new ArrayList<>();
+	try (Stream<Path> files = Files.list(dir)) {
+	    return files.filter(path -> path.toString().endsWith(".lox"))
+		.sorted().collect(Collectors.toList());
+	}
+    }
+
+    private static void check(String name, byte[] bytes, int chunkSize) {
+	ByteBuffer source = ByteBuffer.wrap(bytes);
+
+	ByteArrayOutputStream serialErrors = new ByteArrayOutputStream();
+	TokenBuffer serial = capture(serialErrors,
+				     () -> new Scanner(source).scanTokens());
+
+	ParallelScanner.chunkSize = chunkSize;
+	ByteArrayOutputStream parallelErrors = new ByteArrayOutputStream();
+	TokenBuffer parallel = capture(parallelErrors, () -> {
+		TokenBuffer tokens = new TokenBuffer(source);
+		new ParallelScanner(source).scanInto(tokens);
+		return tokens;
+	    });
+
+	if (serial.sameTokens(parallel) &&
+	    serialErrors.toString().equals(parallelErrors.toString())) {
+	    return;
+	}
+
+	failures ++;
+	System.out.println("FAIL " + name + " with " + chunkSize +
+			   "-byte chunks");
+	if (bytes.length < 200) {
+	    System.out.println("  " + new String(bytes, StandardCharsets.UTF_8)
+			       .replace("\n", "\\n"));
+	}
+    }
+
+    // Runs the scan with System.err going to errors, where Lox.error()
+    // writes.
+    private static TokenBuffer capture(ByteArrayOutputStream errors,
+				       Supplier<TokenBuffer> scan) {
+	PrintStream err = System.err;
+	System.setErr(new PrintStream(errors, true));
+	try {
+	    return scan.get();
+	} finally {
+	    System.setErr(err);
+	}
+    }
+}
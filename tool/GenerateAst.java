@@ -14,33 +14,47 @@ public class GenerateAst{
 	}
 	String outputDir = args[0];
 	defineAst(outputDir, "Expr", Arrays.asList(
-	  "Assign   : Token name, Expr value",
-	  "Binary   : Expr left, Token operator, Expr right",
-	  "Call     : Expr callee, Token paren, List<Expr> arguments",
-	  "Get      : Expr object, Token name",
+	  "Assign   : Token name, Expr value : int depth = -1, int slot",
+	  "Binary   : Expr left, Token operator, Expr right" +
+	            " : BinaryNode node = BinaryNode.UNINITIALIZED",
+	  "Call     : Expr callee, Token paren, List<Expr> arguments" +
+	            " : boolean tail",
+	  "Get      : Expr object, Token name : InlineCache cache = new InlineCache()",
           "Grouping : Expr expression",
+	  "Inlined  : Expr.Call call, Stmt.Function function, Expr body," +
+	            " int slot",
+	  "Invariant : Expr expression, int slot",
           "Literal  : Object value",
 	  "Logical  : Expr left, Token operator, Expr right",
-	  "Set      : Expr object, Token name, Expr value",
-	  "Super    : Token keyword, Token method",
-	  "This     : Token keyword",
+	  "Set      : Expr object, Token name, Expr value" +
+	            " : InlineCache cache = new InlineCache()",
+	  "Super    : Token keyword, Token method : int depth = -1",
+	  "This     : Token keyword : int depth = -1, int slot",
           "Unary    : Token operator, Expr right",
-	  "Variable : Token name"
+	  "Variable : Token name : int depth = -1, int slot"
         ));
 
 	defineAst(outputDir, "Stmt", Arrays.asList(
-	  "Block      : List<Stmt> statements",
+	  "Block      : List<Stmt> statements : boolean hasEnvironment",
 	  "Class      : Token name, Expr.Variable superclass," +
-	              " List<Stmt.Function> methods",
+	              " List<Stmt.Function> methods : int slot = -1",
 	  "Expression : Expr expression",
+	  "For        : Stmt initializer, Expr condition, Expr increment," +
+	              " Stmt body : boolean hasEnvironment," +
+	              " int[] invariants = new int[0]",
 	  "Function   : Token name, List<Token> params," +
-	              " List<Stmt> body",
+	              " List<Stmt> body" +
+	              " : int slot = -1, int frameSize, boolean hasEnvironment," +
+	              " boolean[] capturedParams," +
+	              " int calls, Jit.Code compiled, boolean uncompilable," +
+	              " boolean reassigned",
 	  "If         : Expr condition, Stmt thenBranch," +
 	              " Stmt elseBranch",
 	  "Print      : Expr expression",
 	  "Return     : Token keyword, Expr value",
-	  "Var        : Token name, Expr initializer",
-	  "While      : Expr condition, Stmt body"
+	  "Var        : Token name, Expr initializer : int slot = -1",
+	  "While      : Expr condition, Stmt body" +
+	              " : int[] invariants = new int[0]"
 	));
     }
 
@@ -59,9 +73,13 @@ public class GenerateAst{
         defineVisitor(writer, baseName, types);
 
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            // An optional third part lists mutable fields that later
+            // passes fill in, like the Resolver's scope depth.
+            String mutableFields = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, baseName, className, fields, mutableFields);
         }
 
         // The base accept() method.
@@ -87,7 +105,7 @@ public class GenerateAst{
 
     private static void defineType(
         PrintWriter writer, String baseName,
-        String className, String fieldList) {
+        String className, String fieldList, String mutableFieldList) {
         writer.println("    static class " + className + " extends " +
                       baseName + " {");
         // Constructor.
@@ -116,6 +134,11 @@ public class GenerateAst{
         for (String field : fields) {
             writer.println("        final " + field + ";");
         }
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
         writer.println("    }");
     }
         